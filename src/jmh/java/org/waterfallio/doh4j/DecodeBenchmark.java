@@ -0,0 +1,106 @@
+package org.waterfallio.doh4j;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waterfallio.doh4j.Resolver.Format;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks decoding a response body into a {@link Result}, the work formerly done by deserializing with Jackson
+ * databinding. The body is fed to the {@link ResultSubscriber} of the format in a single buffer or split into buffers
+ * of 16 bytes, to include the cost of resuming the non-blocking parser.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+  private static final HttpResponse.ResponseInfo OK = new HttpResponse.ResponseInfo() {
+    @Override
+    public int statusCode() {
+      return 200;
+    }
+
+    @Override
+    public HttpHeaders headers() {
+      return HttpHeaders.of(Map.of(), (name, value) -> true);
+    }
+
+    @Override
+    public HttpClient.Version version() {
+      return HttpClient.Version.HTTP_2;
+    }
+  };
+
+  private static final Flow.Subscription SUBSCRIPTION = new Flow.Subscription() {
+    @Override
+    public void request(long n) {
+    }
+
+    @Override
+    public void cancel() {
+    }
+  };
+
+  @Param({"JSON", "WIRE"})
+  public Format format;
+
+  @Param({"0", "16"})
+  public int chunkSize;
+
+  private byte[] body;
+
+  @Setup
+  public void setUp() {
+    if (format == Format.JSON) {
+      body = ("{\"Status\": 0, \"TC\": false, \"RD\": true, \"RA\": true, \"AD\": false, \"CD\": false, " +
+          "\"Question\": [{\"name\": \"example.com.\", \"type\": 1}], " +
+          "\"Answer\": [{\"name\": \"example.com.\", \"type\": 1, \"TTL\": 300, \"data\": \"192.0.2.1\"}, " +
+          "{\"name\": \"example.com.\", \"type\": 1, \"TTL\": 300, \"data\": \"192.0.2.2\"}], " +
+          "\"Comment\": \"Response from 192.0.2.53.\"}").getBytes(StandardCharsets.UTF_8);
+    } else {
+      body = StubResolver.answer(MessageCodec.encodeQuery("example.com", Type.A, 0).array());
+    }
+  }
+
+  @Benchmark
+  public Result decode() {
+    HttpResponse.BodySubscriber<Result> subscriber = ResultSubscriber.handler(format).apply(OK);
+
+    subscriber.onSubscribe(SUBSCRIPTION);
+
+    if (chunkSize == 0) {
+      subscriber.onNext(List.of(ByteBuffer.wrap(body)));
+    } else {
+      for (int i = 0; i < body.length; i += chunkSize) {
+        subscriber.onNext(List.of(ByteBuffer.wrap(body, i, Math.min(chunkSize, body.length - i))));
+      }
+    }
+
+    subscriber.onComplete();
+
+    return subscriber.getBody().toCompletableFuture().join();
+  }
+}
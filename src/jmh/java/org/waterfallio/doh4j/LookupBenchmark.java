@@ -0,0 +1,113 @@
+package org.waterfallio.doh4j;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waterfallio.doh4j.Resolver.Format;
+import org.waterfallio.doh4j.Resolver.Method;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Benchmarks end-to-end lookups against a {@link StubResolver} on the loopback interface, for both formats, with
+ * cache hit ratios from all misses to all hits, and for asynchronous lookups with up to 64 lookups in flight.</p>
+ *
+ * <p>Hits go to a small set of names cached during setup, misses to a name never looked up before. Synchronous lookups
+ * run at the concurrency of the JMH threads, e.g. {@code gradle jmh -PjmhArgs="LookupBenchmark.lookup -t 16"}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+  private static final int HOT_NAMES = 64;
+
+  @Param({"JSON", "WIRE"})
+  public Format format;
+
+  @Param({"0", "0.9", "1"})
+  public double hitRatio;
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private StubResolver stub;
+  private Doh4j.Doh4jClient client;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    stub = new StubResolver();
+    client = Doh4j.builder()
+        .client(HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build())
+        .resolver(format == Format.JSON ? stub.getJsonUrl() : stub.getWireUrl(), Method.GET, format)
+        .cache(10_000)
+        .build();
+
+    for (int i = 0; i < HOT_NAMES; i++) {
+      client.lookup(hotName(i), Type.A);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    stub.close();
+  }
+
+  @Benchmark
+  public Result lookup() {
+    return client.lookup(nextName(), Type.A);
+  }
+
+  /**
+   * Starts a batch of asynchronous lookups and waits for all of them, so each operation is a batch of
+   * {@link Batch#concurrency} lookups.
+   */
+  @Benchmark
+  public Object lookupAsync(Batch batch) {
+    CompletableFuture<?>[] lookups = new CompletableFuture<?>[batch.concurrency];
+
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = client.lookupAsync(nextName(), Type.A);
+    }
+
+    return CompletableFuture.allOf(lookups).join();
+  }
+
+  private String nextName() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    if (random.nextDouble() < hitRatio) {
+      return hotName(random.nextInt(HOT_NAMES));
+    }
+
+    return "miss-" + misses.incrementAndGet() + ".example.com";
+  }
+
+  private static String hotName(int index) {
+    return "hot-" + index + ".example.com";
+  }
+
+  @State(Scope.Benchmark)
+  public static class Batch {
+    @Param({"1", "16", "64"})
+    public int concurrency;
+  }
+}
@@ -0,0 +1,60 @@
+package org.waterfallio.doh4j;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waterfallio.doh4j.Resolver.Format;
+import org.waterfallio.doh4j.Resolver.Method;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building the HTTP request of a lookup for each format and method, including the encoding of wire-format
+ * queries. The parseUri benchmark measures the share of that cost spent parsing the URL of a request carrying the query
+ * in the URL, which every such request still pays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+  @Param({"JSON_GET", "WIRE_GET", "WIRE_POST"})
+  public String variant;
+
+  @Param({"example.com", "www.xn--mnchen-3ya.example", "www.m\u00fcnchen.example"})
+  public String name;
+
+  private RequestTemplate template;
+  private String url;
+
+  @Setup
+  public void setUp() {
+    template = new RequestTemplate(new Resolver("https://resolver.example/dns-query",
+        variant.endsWith("POST") ? Method.POST : Method.GET,
+        variant.startsWith("WIRE") ? Format.WIRE : Format.JSON));
+    url = template.request(name, Type.A, null).uri().toString();
+  }
+
+  @Benchmark
+  public HttpRequest getRequest() {
+    return template.request(name, Type.A, null);
+  }
+
+  @Benchmark
+  public URI parseUri() {
+    return URI.create(url);
+  }
+}
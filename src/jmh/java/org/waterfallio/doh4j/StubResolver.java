@@ -0,0 +1,151 @@
+package org.waterfallio.doh4j;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>The StubResolver class is an in-process DoH resolver on the loopback interface for benchmarks, so they measure the
+ * client rather than the network and run without internet access.</p>
+ *
+ * <p>Every query is answered with a single A record of 192.0.2.1 with a TTL of 300 seconds, as JSON for JSON API
+ * requests and in wire format for RFC 8484 requests.</p>
+ */
+class StubResolver implements AutoCloseable {
+  static final String ADDRESS = "192.0.2.1";
+  static final int TTL = 300;
+
+  private static final String JSON_FORMAT = "{\"Status\": 0, \"TC\": false, \"RD\": true, \"RA\": true, " +
+      "\"AD\": false, \"CD\": false, \"Question\": [{\"name\": \"%1$s\", \"type\": %2$s}], " +
+      "\"Answer\": [{\"name\": \"%1$s\", \"type\": 1, \"TTL\": " + TTL + ", \"data\": \"" + ADDRESS + "\"}]}";
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "stub-resolver");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  StubResolver() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    server.createContext("/resolve", this::json);
+    server.createContext("/dns-query", this::wire);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Returns the URL of the JSON API endpoint.
+   */
+  String getJsonUrl() {
+    return "http://" + getAuthority() + "/resolve";
+  }
+
+  /**
+   * Returns the URL of the RFC 8484 endpoint.
+   */
+  String getWireUrl() {
+    return "http://" + getAuthority() + "/dns-query";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private String getAuthority() {
+    InetSocketAddress address = server.getAddress();
+
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  private void json(HttpExchange exchange) throws IOException {
+    String name = ".";
+    String type = "1";
+
+    for (String parameter : exchange.getRequestURI().getRawQuery().split("&")) {
+      int separator = parameter.indexOf('=');
+      String value = URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+
+      if (parameter.startsWith("name=")) {
+        name = value.endsWith(".") ? value : value + ".";
+      } else if (parameter.startsWith("type=")) {
+        type = value;
+      }
+    }
+
+    byte[] body = String.format(JSON_FORMAT, name, type).getBytes(StandardCharsets.UTF_8);
+
+    respond(exchange, "application/dns-json", body);
+  }
+
+  private void wire(HttpExchange exchange) throws IOException {
+    byte[] query;
+
+    if ("GET".equals(exchange.getRequestMethod())) {
+      String parameters = exchange.getRequestURI().getRawQuery();
+      int start = parameters.indexOf("dns=") + 4;
+      int end = parameters.indexOf('&', start);
+
+      query = Base64.getUrlDecoder().decode(parameters.substring(start, end < 0 ? parameters.length() : end));
+    } else {
+      try (InputStream body = exchange.getRequestBody()) {
+        query = body.readAllBytes();
+      }
+    }
+
+    respond(exchange, "application/dns-message", answer(query));
+  }
+
+  /**
+   * Builds the response to a wire-format query: the header and question of the query with the response flag set,
+   * followed by an answer whose name points to the question. Additional records of the query, such as EDNS options,
+   * are dropped.
+   */
+  static byte[] answer(byte[] query) {
+    int questionEnd = 12;
+
+    while (query[questionEnd] != 0) {
+      questionEnd += query[questionEnd] + 1;
+    }
+
+    questionEnd += 5;
+
+    ByteBuffer response = ByteBuffer.allocate(questionEnd + 16);
+
+    response.put(query, 0, questionEnd);
+    response.putShort(2, (short) 0x8180);
+    response.putShort(6, (short) 1);
+    response.putShort(8, (short) 0);
+    response.putShort(10, (short) 0);
+    response.putShort((short) 0xC00C);
+    response.putShort((short) 1);
+    response.putShort((short) 1);
+    response.putInt(TTL);
+    response.putShort((short) 4);
+    response.put(new byte[]{(byte) 192, 0, 2, 1});
+
+    return response.array();
+  }
+
+  private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, body.length);
+
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(body);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.waterfallio.doh4j;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>The AddressRange class is a single IPv4 or IPv6 address, or a range of addresses in CIDR notation such as
+ * {@code 192.0.2.0/24} or {@code 2001:db8::/120}.</p>
+ *
+ * <p>Ranges are iterated lazily, one address at a time, so even ranges far larger than memory can be streamed.</p>
+ */
+class AddressRange implements Iterable<byte[]> {
+  private final byte[] network;
+  private final int prefix;
+
+  private AddressRange(byte[] network, int prefix) {
+    this.network = network;
+    this.prefix = prefix;
+
+    for (int bit = prefix; bit < network.length * 8; bit++) {
+      network[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+    }
+  }
+
+  /**
+   * Returns the first address of the range, i.e. its network address.
+   */
+  byte[] getNetwork() {
+    return network.clone();
+  }
+
+  int getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Parses an address or a range of addresses in CIDR notation. Host names are rejected rather than resolved.
+   *
+   * @throws IllegalArgumentException if the text is not an IPv4 or IPv6 address or range
+   */
+  static AddressRange parse(String text) {
+    int slash = text.indexOf('/');
+    String literal = slash < 0 ? text : text.substring(0, slash);
+    byte[] address = literal.indexOf(':') >= 0 ? parseIpv6(text, literal) : parseIpv4(text, literal);
+    int prefix = address.length * 8;
+
+    if (slash >= 0) {
+      try {
+        prefix = Integer.parseInt(text.substring(slash + 1));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid prefix length in " + text, e);
+      }
+
+      if (prefix < 0 || prefix > address.length * 8) {
+        throw new IllegalArgumentException("Invalid prefix length in " + text);
+      }
+    }
+
+    return new AddressRange(address, prefix);
+  }
+
+  /**
+   * Parses an IPv4 address in strict dotted-decimal notation: four decimal octets without leading zeros.
+   */
+  private static byte[] parseIpv4(String text, String literal) {
+    String[] octets = literal.split("\\.", -1);
+    byte[] address = new byte[4];
+
+    if (octets.length != 4) {
+      throw new IllegalArgumentException("Invalid IPv4 address " + text);
+    }
+
+    for (int i = 0; i < 4; i++) {
+      String octet = octets[i];
+
+      if (octet.isEmpty() || octet.length() > 3 || (octet.length() > 1 && octet.charAt(0) == '0') ||
+          !octet.chars().allMatch(c -> c >= '0' && c <= '9') || Integer.parseInt(octet) > 255) {
+        throw new IllegalArgumentException("Invalid IPv4 address " + text);
+      }
+
+      address[i] = (byte) Integer.parseInt(octet);
+    }
+
+    return address;
+  }
+
+  private static byte[] parseIpv6(String text, String literal) {
+    try {
+      // Literals containing a colon are parsed as IPv6 addresses and never resolved as host names
+      byte[] address = InetAddress.getByName(literal).getAddress();
+
+      if (address.length != 16 || literal.indexOf('%') >= 0) {
+        throw new IllegalArgumentException("Invalid IPv6 address " + text);
+      }
+
+      return address;
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid IPv6 address " + text, e);
+    }
+  }
+
+  /**
+   * Returns an iterator over the addresses of the range in ascending order. Each address is a new array.
+   */
+  @Override
+  public Iterator<byte[]> iterator() {
+    return new Iterator<>() {
+      private byte[] next = network.clone();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public byte[] next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+
+        byte[] address = next;
+
+        next = increment(address);
+
+        return address;
+      }
+    };
+  }
+
+  /**
+   * Returns an iterator over the addresses of the given ranges, one range after the other.
+   */
+  static Iterator<byte[]> iterator(List<AddressRange> ranges) {
+    return new Iterator<>() {
+      private final Iterator<AddressRange> remaining = ranges.iterator();
+      private Iterator<byte[]> current = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext() && remaining.hasNext()) {
+          current = remaining.next().iterator();
+        }
+
+        return current.hasNext();
+      }
+
+      @Override
+      public byte[] next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return current.next();
+      }
+    };
+  }
+
+  /**
+   * Returns the address following the given one, or null if it is the last address of the range.
+   */
+  private byte[] increment(byte[] address) {
+    byte[] next = address.clone();
+
+    for (int i = next.length - 1; i >= 0; i--) {
+      if (++next[i] != 0) {
+        break;
+      }
+    }
+
+    for (int bit = 0; bit < prefix; bit++) {
+      int mask = 0x80 >>> (bit % 8);
+
+      if ((next[bit / 8] & mask) != (network[bit / 8] & mask)) {
+        return null;
+      }
+    }
+
+    return next;
+  }
+}
@@ -0,0 +1,503 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>The Cache class is a bounded in-memory cache of lookup results keyed by domain name and record type. Each entry
+ * expires after the minimum TTL of the answers in its {@link Result}, and the least recently used of a small sample of
+ * entries is evicted once the cache grows past its maximum size. Each sample continues where the previous one stopped,
+ * so samples sweep the whole cache like the hand of a clock rather than inspecting the same entries over and over.</p>
+ *
+ * <p>Hits return the cached {@link Result} instance itself, so callers must treat results obtained from a caching
+ * client as read-only.</p>
+ *
+ * <p>If negative caching is enabled, NXDOMAIN and NODATA results are cached for the negative TTL of RFC 2308, the
+ * minimum of the TTL and the MINIMUM field of the SOA record in their authority section. Negative entries are kept
+ * apart from positive ones with their own maximum size, so a flood of lookups for nonexistent names cannot evict
+ * positive entries.</p>
+ *
+ * <p>Results of queries with a {@link ClientSubnet} are kept apart by subnet: a result is cached for the source subnet
+ * of its query, unless the resolver answered with a scope prefix length of 0, which means the answer does not depend on
+ * the subnet and is shared by all subnets of the address family. Such results are not written to snapshots.</p>
+ *
+ * <p>If restored from a {@link CacheSnapshot}, a miss falls back to the snapshot and a live record found there is
+ * added to the cache with its original expiry time.</p>
+ *
+ * <p>If refresh-ahead is enabled, an entry that has been hit often enough is refreshed in the background once a
+ * fraction of its TTL has elapsed, so popular entries are replaced before they expire. Hits per entry are counted
+ * without synchronization and may undercount under contention, which only delays a refresh.</p>
+ *
+ * <p>If serving stale results is enabled, expired entries are kept for a stale window past their expiry and are
+ * preferred for eviction once it has passed. Stale results are copies of the cached result with a TTL of at most
+ * {@link #STALE_TTL} seconds, as recommended by RFC 8767, and after a failed lookup an entry is not looked up again for
+ * {@link #RECHECK_MILLIS} milliseconds.</p>
+ */
+class Cache {
+  /**
+   * The number of entries inspected when choosing an eviction victim.
+   */
+  private static final int EVICTION_SAMPLE_SIZE = 16;
+
+  /**
+   * The TTL of the answers of a stale result.
+   */
+  static final int STALE_TTL = 30;
+
+  /**
+   * The time after a failed lookup during which stale results are served without another lookup.
+   */
+  static final long RECHECK_MILLIS = 30_000;
+
+  /**
+   * The maximum negative TTL, as suggested by RFC 2308.
+   */
+  static final long MAX_NEGATIVE_TTL = 10_800;
+
+  private static final int NXDOMAIN = 3;
+
+  private final Map<Query, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<Query, Entry> negatives = new ConcurrentHashMap<>();
+  private final int maximumSize;
+  private int negativeMaximumSize;
+  private final LongSupplier clock;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+
+  private double refreshFraction;
+  private int refreshHits;
+  private Function<Query, CompletableFuture<Result>> refresher;
+  private long staleWindow;
+  private volatile CacheSnapshot snapshot;
+
+  /**
+   * The positions where the next eviction samples of the positive and negative entries start, guarded by their map.
+   */
+  private Iterator<Map.Entry<Query, Entry>> entriesHand = Collections.emptyIterator();
+  private Iterator<Map.Entry<Query, Entry>> negativesHand = Collections.emptyIterator();
+
+  Cache(int maximumSize) {
+    this(maximumSize, System::currentTimeMillis);
+  }
+
+  Cache(int maximumSize, LongSupplier clock) {
+    this.maximumSize = maximumSize;
+    this.clock = clock;
+  }
+
+  /**
+   * Enables refresh-ahead of popular entries.
+   *
+   * @param fraction  the fraction of the TTL after which an entry is refreshed, between 0 and 1
+   * @param hits      the number of hits that makes an entry popular enough to be refreshed
+   * @param refresher looks up a fresh result for a query and puts it in the cache
+   */
+  void refreshAhead(double fraction, int hits, Function<Query, CompletableFuture<Result>> refresher) {
+    this.refreshFraction = fraction;
+    this.refreshHits = hits;
+    this.refresher = refresher;
+  }
+
+  /**
+   * Enables caching of NXDOMAIN and NODATA results.
+   *
+   * @param maximumSize the maximum number of negative entries
+   */
+  void negativeCache(int maximumSize) {
+    this.negativeMaximumSize = maximumSize;
+  }
+
+  /**
+   * Falls back to the given snapshot for queries missing from the cache.
+   */
+  void restore(CacheSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Writes the live entries of the cache to a snapshot file.
+   */
+  void snapshot(Path file) throws IOException {
+    long now = clock.getAsLong();
+    List<Query> queries = new ArrayList<>(entries.size() + negatives.size());
+    List<CacheSnapshot.Record> records = new ArrayList<>(entries.size() + negatives.size());
+
+    for (Map<Query, Entry> map : List.of(entries, negatives)) {
+      for (Map.Entry<Query, Entry> entry : map.entrySet()) {
+        Entry value = entry.getValue();
+
+        if (value.expiresAt > now && entry.getKey().getSubnet() == null) {
+          queries.add(entry.getKey());
+          records.add(new CacheSnapshot.Record(value.result, value.expiresAt, map == negatives));
+        }
+      }
+    }
+
+    CacheSnapshot.write(file, queries, records);
+  }
+
+  /**
+   * Keeps expired entries for serving them stale.
+   *
+   * @param staleWindow the time in milliseconds past their expiry to keep entries
+   */
+  void serveStale(long staleWindow) {
+    this.staleWindow = staleWindow;
+  }
+
+  /**
+   * Returns a stale copy of the expired result for the given query, or null if there is no entry or it is still live
+   * or past the stale window.
+   */
+  Result getStale(Query query) {
+    Entry entry = entry(query);
+    long now = clock.getAsLong();
+
+    if (entry == null || entry.expiresAt > now || entry.expiresAt + staleWindow <= now) {
+      return null;
+    }
+
+    Result stale = entry.stale;
+
+    if (stale == null) {
+      stale = entry.stale = staleCopy(entry.result);
+    }
+
+    return stale;
+  }
+
+  /**
+   * Records a failed lookup for the given query, so its stale result is served without a lookup for a while.
+   */
+  void failed(Query query) {
+    Entry entry = entry(query);
+
+    if (entry != null) {
+      entry.retryAt = clock.getAsLong() + RECHECK_MILLIS;
+    }
+  }
+
+  /**
+   * Returns whether a lookup for the given query failed recently enough that it should not be retried yet.
+   */
+  boolean isRecheckPending(Query query) {
+    Entry entry = entry(query);
+
+    return entry != null && entry.retryAt > clock.getAsLong();
+  }
+
+  /**
+   * Returns the cached result for the given query, or null if there is no live entry.
+   */
+  Result get(Query query) {
+    Entry entry = entry(query);
+    long now = clock.getAsLong();
+
+    if (entry == null && snapshot != null && query.getSubnet() == null) {
+      entry = restore(query, now);
+    }
+
+    if (entry == null || entry.expiresAt <= now) {
+      misses.increment();
+      return null;
+    }
+
+    entry.lastAccess = now;
+    entry.hits++;
+    hits.increment();
+
+    if (refresher != null && entry.hits >= refreshHits && now >= entry.refreshAt && !entry.refreshing &&
+        Entry.REFRESHING.compareAndSet(entry, false, true)) {
+      refresh(query, entry);
+    }
+
+    return entry.result;
+  }
+
+  /**
+   * Returns the cached result for the given query like {@link #get(Query)}, but without counting a hit or a miss,
+   * marking the entry as used or refreshing it, for probes that are not lookups of their own.
+   */
+  Result peek(Query query) {
+    Entry entry = entry(query);
+    long now = clock.getAsLong();
+
+    if (entry == null && snapshot != null && query.getSubnet() == null) {
+      entry = restore(query, now);
+    }
+
+    return entry == null || entry.expiresAt <= now ? null : entry.result;
+  }
+
+  /**
+   * Starts refreshing the given entry. The refresh flag is cleared whatever the outcome, as a result that is not
+   * cacheable, e.g. one with a TTL of 0, leaves the entry in place and due for another refresh.
+   */
+  private void refresh(Query query, Entry entry) {
+    refreshes.increment();
+
+    CompletableFuture<Result> refresh;
+
+    try {
+      refresh = refresher.apply(query);
+    } catch (RuntimeException e) {
+      refresh = CompletableFuture.failedFuture(e);
+    }
+
+    refresh.whenComplete((result, e) -> entry.refreshing = false);
+  }
+
+  private Entry restore(Query query, long now) {
+    CacheSnapshot.Record record;
+
+    try {
+      record = snapshot.read(query, now);
+    } catch (Do4jSerializeException e) {
+      // A corrupt snapshot only costs its remaining records, lookups go to the resolvers instead
+      snapshot = null;
+      return null;
+    }
+
+    Map<Query, Entry> target = record == null || record.negative ? negatives : entries;
+    int size = target == negatives ? negativeMaximumSize : maximumSize;
+
+    if (record == null || size == 0) {
+      return null;
+    }
+    Entry entry = new Entry(record.result, record.expiresAt,
+        now + (long) ((record.expiresAt - now) * refreshFraction), now);
+    Entry existing = target.putIfAbsent(query, entry);
+
+    while (target.size() > size) {
+      evict(target, now);
+    }
+
+    return existing != null ? existing : entry;
+  }
+
+  private Entry entry(Query query) {
+    Entry entry = find(query);
+    ClientSubnet subnet = query.getSubnet();
+
+    return entry != null || subnet == null || subnet.getSourcePrefix() == 0 ? entry :
+        find(query.withSubnet(subnet.truncate(0)));
+  }
+
+  private Entry find(Query query) {
+    Entry entry = entries.get(query);
+
+    return entry != null || negatives.isEmpty() ? entry : negatives.get(query);
+  }
+
+  /**
+   * Caches the result for the given query until the minimum TTL of its answers elapses, or, if negative caching is
+   * enabled, until the negative TTL of an NXDOMAIN or NODATA result elapses. Other unsuccessful results and results with
+   * a zero TTL are not cached.
+   */
+  void put(Query query, Result result) {
+    long ttl = ttlOf(result);
+    Map<Query, Entry> target = entries;
+    Map<Query, Entry> other = negatives;
+    int size = maximumSize;
+
+    if (ttl <= 0 && negativeMaximumSize > 0) {
+      ttl = negativeTtlOf(result);
+      target = negatives;
+      other = entries;
+      size = negativeMaximumSize;
+    }
+
+    if (ttl <= 0) {
+      return;
+    }
+
+    long now = clock.getAsLong();
+    ClientSubnet subnet = query.getSubnet();
+
+    if (subnet != null && subnet.getSourcePrefix() > 0 && result.getScopePrefix() == 0) {
+      // Shared by all subnets, so an entry of the source subnet would only shadow it
+      entries.remove(query);
+      negatives.remove(query);
+      query = query.withSubnet(subnet.truncate(0));
+    }
+
+    target.put(query, new Entry(result, now + ttl * 1000, now + (long) (ttl * 1000 * refreshFraction), now));
+    other.remove(query);
+
+    while (target.size() > size) {
+      evict(target, now);
+    }
+  }
+
+  CacheStats stats() {
+    return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), refreshes.sum(),
+        entries.size() + negatives.size());
+  }
+
+  private void evict(Map<Query, Entry> map, long now) {
+    Query victim = null;
+    long oldest = Long.MAX_VALUE;
+
+    synchronized (map) {
+      Iterator<Map.Entry<Query, Entry>> hand = map == entries ? entriesHand : negativesHand;
+
+      for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+        if (!hand.hasNext()) {
+          // Wraps around, the iterators of a ConcurrentHashMap tolerate concurrent updates
+          hand = map.entrySet().iterator();
+
+          if (!hand.hasNext()) {
+            break;
+          }
+        }
+
+        Map.Entry<Query, Entry> candidate = hand.next();
+
+        if (candidate.getValue().expiresAt + staleWindow <= now) {
+          victim = candidate.getKey();
+          break;
+        }
+
+        if (candidate.getValue().lastAccess < oldest) {
+          oldest = candidate.getValue().lastAccess;
+          victim = candidate.getKey();
+        }
+      }
+
+      if (map == entries) {
+        entriesHand = hand;
+      } else {
+        negativesHand = hand;
+      }
+    }
+
+    if (victim != null && map.remove(victim) != null) {
+      evictions.increment();
+    }
+  }
+
+  private static Result staleCopy(Result result) {
+    Result stale = new Result();
+
+    stale.setStatus(result.getStatus());
+    stale.setAnswer(staleCopy(result.getAnswer()));
+    stale.setAuthority(staleCopy(result.getAuthority()));
+    stale.setEdnsClientSubnet(result.getEdnsClientSubnet());
+    stale.setStale(true);
+
+    return stale;
+  }
+
+  private static List<Answer> staleCopy(List<Answer> answers) {
+    List<Answer> copies = new ArrayList<>(answers == null ? 0 : answers.size());
+
+    if (answers == null) {
+      return copies;
+    }
+
+    for (Answer answer : answers) {
+      Answer copy = new Answer();
+
+      copy.setName(answer.getName());
+      copy.setType(answer.getType());
+      copy.setTTL(Math.min(answer.getTTL(), STALE_TTL));
+      copy.setData(answer.getData());
+      copies.add(copy);
+    }
+
+    return copies;
+  }
+
+  /**
+   * Returns the negative TTL of an NXDOMAIN or NODATA result, the minimum of the TTL and the MINIMUM field of the SOA
+   * record in its authority section, or 0 if the result is not negative or has no usable SOA record.
+   */
+  private static long negativeTtlOf(Result result) {
+    List<Answer> answers = result.getAnswer();
+    boolean nodata = result.getStatus() == 0 && (answers == null || answers.isEmpty());
+
+    if ((result.getStatus() != NXDOMAIN && !nodata) || result.getAuthority() == null) {
+      return 0;
+    }
+
+    for (Answer record : result.getAuthority()) {
+      if (record.getType() == Type.SOA && record.getData() != null) {
+        String data = record.getData().trim();
+
+        try {
+          long minimum = Long.parseLong(data.substring(data.lastIndexOf(' ') + 1));
+
+          return Math.min(Math.min(record.getTTL(), minimum), MAX_NEGATIVE_TTL);
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+
+    return 0;
+  }
+
+  private static long ttlOf(Result result) {
+    List<Answer> answers = result.getAnswer();
+
+    if (result.getStatus() != 0 || answers == null || answers.isEmpty()) {
+      return 0;
+    }
+
+    long ttl = Long.MAX_VALUE;
+
+    for (Answer answer : answers) {
+      ttl = Math.min(ttl, answer.getTTL());
+    }
+
+    return ttl;
+  }
+
+  private static final class Entry {
+    private static final VarHandle REFRESHING;
+
+    static {
+      try {
+        REFRESHING = MethodHandles.lookup().findVarHandle(Entry.class, "refreshing", boolean.class);
+      } catch (ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private final Result result;
+    private final long expiresAt;
+    private final long refreshAt;
+    private volatile long lastAccess;
+    private volatile int hits;
+    private volatile boolean refreshing;
+    private volatile long retryAt;
+    private volatile Result stale;
+
+    private Entry(Result result, long expiresAt, long refreshAt, long lastAccess) {
+      this.result = result;
+      this.expiresAt = expiresAt;
+      this.refreshAt = refreshAt;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The CacheSnapshot class persists cache entries to a compact binary file and reads them back lazily, so a restarted
+ * client starts with the results of its predecessor instead of an empty cache.</p>
+ *
+ * <p>The file starts with an open-addressing hash table of query hashes and record offsets, followed by the records.
+ * It is memory-mapped when opened and nothing is decoded up front: a cache miss probes the table and decodes the single
+ * matching record, so opening a snapshot of any size costs a constant time before the first lookup.</p>
+ *
+ * <p>Records keep the absolute time at which they expire. Expired records are neither written nor read, and the TTLs
+ * of restored answers are lowered to the time remaining until expiry.</p>
+ */
+class CacheSnapshot {
+  private static final int MAGIC = 0x44344A43;
+  private static final int VERSION = 1;
+
+  /**
+   * The length of the header: magic, version and number of slots.
+   */
+  private static final int HEADER_LENGTH = 12;
+
+  /**
+   * The length of a slot: query hash and record offset, where offset 0 marks an empty slot.
+   */
+  private static final int SLOT_LENGTH = 8;
+
+  private static final int FLAG_NEGATIVE = 1;
+
+  private final ByteBuffer buffer;
+  private final int slots;
+
+  private CacheSnapshot(ByteBuffer buffer, int slots) {
+    this.buffer = buffer;
+    this.slots = slots;
+  }
+
+  /**
+   * Memory-maps a snapshot file.
+   *
+   * @return the snapshot, or null if the file does not exist
+   * @throws Do4jSerializeException if the file is not a snapshot of a supported version
+   */
+  static CacheSnapshot open(Path file) throws IOException {
+    ByteBuffer buffer;
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+
+    if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new Do4jSerializeException("Unsupported cache snapshot " + file);
+    }
+
+    int slots = buffer.getInt(8);
+
+    if (slots <= 0 || Integer.bitCount(slots) != 1 || HEADER_LENGTH + (long) slots * SLOT_LENGTH > buffer.limit()) {
+      throw new Do4jSerializeException("Malformed cache snapshot " + file);
+    }
+
+    return new CacheSnapshot(buffer, slots);
+  }
+
+  /**
+   * Reads the record of the given query.
+   *
+   * @return the record, or null if the snapshot holds no live record of the query
+   */
+  Record read(Query query, long now) {
+    int mask = slots - 1;
+
+    try {
+      for (int i = query.hashCode() & mask, probes = 0; probes < slots; i = (i + 1) & mask, probes++) {
+        int slot = HEADER_LENGTH + i * SLOT_LENGTH;
+        int offset = buffer.getInt(slot + 4);
+
+        if (offset == 0) {
+          return null;
+        }
+
+        if (buffer.getInt(slot) == query.hashCode()) {
+          Record record = readRecord(query, offset, now);
+
+          if (record != null) {
+            return record;
+          }
+        }
+      }
+
+      return null;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new Do4jSerializeException("Malformed cache snapshot", e);
+    }
+  }
+
+  private Record readRecord(Query query, int offset, long now) {
+    ByteBuffer record = buffer.duplicate().position(offset);
+    int flags = record.get();
+    long expiresAt = record.getLong();
+    String name = readString(record);
+    int type = Short.toUnsignedInt(record.getShort());
+
+    if (type != query.getType() || !name.equals(query.getName()) || expiresAt <= now) {
+      return null;
+    }
+
+    int remaining = (int) Math.min(Integer.MAX_VALUE, (expiresAt - now + 999) / 1000);
+    Result result = new Result();
+
+    result.setStatus(Short.toUnsignedInt(record.getShort()));
+
+    int answers = Short.toUnsignedInt(record.getShort());
+    int authorities = Short.toUnsignedInt(record.getShort());
+
+    result.setAnswer(readAnswers(record, answers, remaining));
+    result.setAuthority(readAnswers(record, authorities, remaining));
+
+    return new Record(result, expiresAt, (flags & FLAG_NEGATIVE) != 0);
+  }
+
+  private static List<Answer> readAnswers(ByteBuffer record, int count, int remaining) {
+    List<Answer> answers = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      Answer answer = new Answer();
+
+      answer.setName(readString(record));
+      answer.setType(Short.toUnsignedInt(record.getShort()));
+      answer.setTTL(Math.min(record.getInt(), remaining));
+      answer.setData(readString(record));
+      answers.add(answer);
+    }
+
+    return answers;
+  }
+
+  private static String readString(ByteBuffer record) {
+    int length = Short.toUnsignedInt(record.getShort());
+
+    if (length == 0xFFFF) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+
+    record.get(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a snapshot of the given records to a file. The snapshot is written to a temporary file next to it and moved
+   * into place, so readers never see a partially written file and a mapped older snapshot stays intact.
+   */
+  static void write(Path file, List<Query> queries, List<Record> records) throws IOException {
+    int slots = Integer.highestOneBit(Math.max(1, queries.size()) * 2 - 1) << 1;
+    ByteArrayOutputStream body = new ByteArrayOutputStream(queries.size() * 128);
+    DataOutputStream output = new DataOutputStream(body);
+    ByteBuffer table = ByteBuffer.allocate(HEADER_LENGTH + slots * SLOT_LENGTH);
+    int base = table.capacity();
+
+    table.putInt(MAGIC).putInt(VERSION).putInt(slots);
+
+    for (int i = 0; i < queries.size(); i++) {
+      int offset = base + output.size();
+
+      if (!writeRecord(output, queries.get(i), records.get(i))) {
+        continue;
+      }
+
+      int mask = slots - 1;
+      int slot = queries.get(i).hashCode() & mask;
+
+      while (table.getInt(HEADER_LENGTH + slot * SLOT_LENGTH + 4) != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      table.putInt(HEADER_LENGTH + slot * SLOT_LENGTH, queries.get(i).hashCode());
+      table.putInt(HEADER_LENGTH + slot * SLOT_LENGTH + 4, offset);
+    }
+
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer[] buffers = {table.clear(), ByteBuffer.wrap(body.toByteArray())};
+
+      while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+        channel.write(buffers);
+      }
+    }
+
+    try {
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Writes a record, unless it does not fit the format.
+   *
+   * @return true if the record was written
+   */
+  private static boolean writeRecord(DataOutputStream output, Query query, Record record) throws IOException {
+    Result result = record.result;
+    List<Answer> answers = result.getAnswer() == null ? List.of() : result.getAnswer();
+    List<Answer> authority = result.getAuthority() == null ? List.of() : result.getAuthority();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream buffer = new DataOutputStream(bytes);
+
+    if (answers.size() > 0xFFFF || authority.size() > 0xFFFF) {
+      return false;
+    }
+
+    buffer.writeByte(record.negative ? FLAG_NEGATIVE : 0);
+    buffer.writeLong(record.expiresAt);
+
+    if (!writeString(buffer, query.getName())) {
+      return false;
+    }
+
+    buffer.writeShort(query.getType());
+    buffer.writeShort(result.getStatus());
+    buffer.writeShort(answers.size());
+    buffer.writeShort(authority.size());
+
+    for (List<Answer> section : List.of(answers, authority)) {
+      for (Answer answer : section) {
+        if (!writeString(buffer, answer.getName())) {
+          return false;
+        }
+
+        buffer.writeShort(answer.getType());
+        buffer.writeInt(answer.getTTL());
+
+        if (!writeString(buffer, answer.getData())) {
+          return false;
+        }
+      }
+    }
+
+    bytes.writeTo(output);
+
+    return true;
+  }
+
+  private static boolean writeString(DataOutputStream output, String value) throws IOException {
+    if (value == null) {
+      output.writeShort(0xFFFF);
+      return true;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    if (bytes.length >= 0xFFFF) {
+      return false;
+    }
+
+    output.writeShort(bytes.length);
+    output.write(bytes);
+
+    return true;
+  }
+
+  /**
+   * A cached result with its absolute expiry time.
+   */
+  static final class Record {
+    final Result result;
+    final long expiresAt;
+    final boolean negative;
+
+    Record(Result result, long expiresAt, boolean negative) {
+      this.result = result;
+      this.expiresAt = expiresAt;
+      this.negative = negative;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package org.waterfallio.doh4j;
+
+/**
+ * The CacheStats class is an immutable snapshot of the counters of a {@link Doh4j.Doh4jClient} response cache.
+ *
+ * @see Doh4j.Doh4jClient#getCacheStats()
+ */
+public class CacheStats {
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long refreshes;
+  private final long size;
+
+  CacheStats(long hits, long misses, long evictions, long refreshes, long size) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.refreshes = refreshes;
+    this.size = size;
+  }
+
+  /**
+   * @return the number of lookups answered from the cache
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups that were not found in the cache or found expired
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of entries evicted to keep the cache within its maximum size
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return the number of background refreshes started for popular entries
+   */
+  public long getRefreshes() {
+    return refreshes;
+  }
+
+  /**
+   * @return the number of entries currently held by the cache, including expired entries not yet evicted
+   */
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStats{" +
+        "hits=" + hits +
+        ", misses=" + misses +
+        ", evictions=" + evictions +
+        ", refreshes=" + refreshes +
+        ", size=" + size +
+        '}';
+  }
+}
@@ -0,0 +1,134 @@
+package org.waterfallio.doh4j;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * <p>The ClientSubnet class represents the client subnet passed to resolvers with the EDNS Client Subnet (ECS) option of
+ * <a href="https://www.rfc-editor.org/rfc/rfc7871">RFC 7871</a>, so CDNs answer with edges close to the given subnet
+ * rather than close to the resolver or the egress gateway of the client.</p>
+ *
+ * <p>Only the network part of the address, as given by the source prefix length, is sent. A prefix length of 0, e.g.
+ * {@code 0.0.0.0/0}, asks resolvers not to use any client subnet.</p>
+ *
+ * <p>Example of a subnet:</p>
+ * <pre>{@code
+ * ClientSubnet subnet = ClientSubnet.of("198.51.100.0/24");
+ * }</pre>
+ */
+public class ClientSubnet {
+  private final byte[] network;
+  private final int sourcePrefix;
+  private final String text;
+
+  private ClientSubnet(byte[] network, int sourcePrefix) {
+    this.network = network;
+    this.sourcePrefix = sourcePrefix;
+    this.text = getAddress().getHostAddress() + "/" + sourcePrefix;
+  }
+
+  /**
+   * Creates a client subnet from an address or a subnet in CIDR notation. An address without prefix length is a subnet
+   * of its full length.
+   *
+   * @param subnet the subnet, e.g. "198.51.100.0/24" or "2001:db8::/56"
+   * @return the client subnet
+   * @throws IllegalArgumentException if the text is not an IPv4 or IPv6 address or subnet
+   */
+  public static ClientSubnet of(String subnet) {
+    AddressRange range = AddressRange.parse(Objects.requireNonNull(subnet, "Subnet cannot be null"));
+
+    return new ClientSubnet(range.getNetwork(), range.getPrefix());
+  }
+
+  /**
+   * Creates a client subnet from an address and a source prefix length. Bits of the address beyond the prefix length
+   * are cleared.
+   *
+   * @param address      the address within the subnet
+   * @param sourcePrefix the source prefix length, at most 32 for IPv4 and 128 for IPv6
+   * @return the client subnet
+   * @throws IllegalArgumentException if the prefix length is out of range
+   */
+  public static ClientSubnet of(InetAddress address, int sourcePrefix) {
+    byte[] network = address.getAddress();
+
+    if (sourcePrefix < 0 || sourcePrefix > network.length * 8) {
+      throw new IllegalArgumentException("Invalid prefix length " + sourcePrefix);
+    }
+
+    return new ClientSubnet(network, network.length * 8).truncate(sourcePrefix);
+  }
+
+  /**
+   * @return the network address of the subnet
+   */
+  public InetAddress getAddress() {
+    try {
+      return InetAddress.getByAddress(network);
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the number of leading bits of the address sent to resolvers
+   */
+  public int getSourcePrefix() {
+    return sourcePrefix;
+  }
+
+  /**
+   * Returns the address family number of RFC 7871: 1 for IPv4 and 2 for IPv6.
+   */
+  int getFamily() {
+    return network.length == 4 ? 1 : 2;
+  }
+
+  /**
+   * Returns the leading bytes of the network address covering the source prefix length, as sent in the ECS option.
+   */
+  byte[] getPrefixBytes() {
+    return Arrays.copyOf(network, (sourcePrefix + 7) / 8);
+  }
+
+  /**
+   * Returns the subnet of the same address with the given, shorter source prefix length.
+   */
+  ClientSubnet truncate(int prefix) {
+    byte[] truncated = network.clone();
+
+    for (int bit = prefix; bit < truncated.length * 8; bit++) {
+      truncated[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+    }
+
+    return new ClientSubnet(truncated, prefix);
+  }
+
+  /**
+   * Returns the subnet in CIDR notation, e.g. "198.51.100.0/24", as passed in the "edns_client_subnet" parameter of the
+   * JSON API.
+   */
+  @Override
+  public String toString() {
+    return text;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    ClientSubnet that = (ClientSubnet) o;
+
+    return sourcePrefix == that.sourcePrefix &&
+        Arrays.equals(network, that.network);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(network) + sourcePrefix;
+  }
+}
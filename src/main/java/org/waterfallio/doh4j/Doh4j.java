@@ -1,24 +1,54 @@
 package org.waterfallio.doh4j;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.waterfallio.doh4j.exception.Do4jLookupException;
 import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Answer;
 import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
 
 import java.io.IOException;
-import java.net.URI;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.*;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.waterfallio.doh4j.Resolver.*;
@@ -35,13 +65,20 @@ public class Doh4j {
   private final static Logger log = LoggerFactory.getLogger(Doh4j.class);
 
   private static HttpClient client =
-      HttpClient.newHttpClient();
-
-  private final static ObjectMapper mapper = new ObjectMapper()
-      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+      HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_2)
+          .build();
 
   public final static String URL_FORMAT = "%s?name=%s&type=%s";
 
+  private final static int DEFAULT_BATCH_PARALLELISM = 64;
+
+  private final static int DEFAULT_NEGATIVE_CACHE_RATIO = 10;
+
+  private final static long NO_DEADLINE = Long.MAX_VALUE;
+
+  private final static int MAX_CNAME_CHAIN = 16;
+
   /**
    * Creates a new instance of Doh4jClient with default resolvers (Google, Cloudflare, Quad9).
    *
@@ -55,7 +92,7 @@ public class Doh4j {
    * @see Doh4jClient#lookup(String, int)
    */
   public static Doh4jClient newClient() {
-    return new Doh4jClient(client);
+    return builder().build();
   }
 
   /**
@@ -91,31 +128,151 @@ public class Doh4j {
     );
 
     /**
-     * The HTTP client used for performing DNS over HTTPS (DoH) lookups.
+     * The health state of each resolver, in the configured order of the resolvers.
      */
-    private final HttpClient client;
+    private final List<ResolverState> states;
 
     /**
-     * Doh4jClient is a class that represents a client for performing DNS over HTTPS (DoH) lookups.
-     * It allows the user to specify a list of resolvers to use for the lookups.
+     * Whether resolvers are requested in the order of their expected time to a successful answer rather than in
+     * their configured order.
      */
-    private Doh4jClient(HttpClient client, List<Resolver> resolvers) {
-      this.client = client;
+    private final boolean adaptiveOrdering;
 
-      if (!resolvers.isEmpty()) {
-        this.resolvers = resolvers;
-      }
-    }
+    /**
+     * The response cache, or null if caching is disabled.
+     */
+    private final Cache cache;
+
+    /**
+     * Lookups currently in flight, shared by concurrent callers asking the same question.
+     */
+    private final Map<Query, SharedLookup> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * The strategy used to distribute a lookup across the resolvers.
+     */
+    private final Strategy strategy;
+
+    /**
+     * The delay after which a hedged lookup additionally requests the next resolver.
+     */
+    private final Duration hedgeDelay;
+
+    /**
+     * The percentile of the latency of a resolver after which a hedged lookup requests the next resolver, or 0 to
+     * always wait for the hedge delay.
+     */
+    private final double hedgePercentile;
+
+    /**
+     * The executor running dependent stages of asynchronous lookups and timers, or null to use the defaults.
+     */
+    private final Executor executor;
+
+    /**
+     * The client subnet passed with lookups that do not specify one, or null.
+     */
+    private final ClientSubnet clientSubnet;
+
+    /**
+     * The default timeout of lookups, or null if lookups do not time out unless a timeout is given.
+     */
+    private final Duration timeout;
+
+    /**
+     * The timeout of a single request to a resolver, or null if requests only time out with their lookup.
+     */
+    private final Duration attemptTimeout;
+
+    /**
+     * The time to wait for a lookup before answering with a stale result, or null if stale results are not served.
+     */
+    private final Duration staleTimeout;
+
+    /**
+     * The file the cache is persisted to, or null if the cache is not persisted.
+     */
+    private final Path snapshotFile;
+
+    /**
+     * The number of successful lookups by the index of the answering resolver in the plan.
+     */
+    private final AtomicLongArray fallbackDepths;
+
+    private final LongAdder failedLookups = new LongAdder();
+
+    /**
+     * The listener receiving request and lookup events, or null if there is none.
+     */
+    private final MetricsListener listener;
 
     /**
      * Doh4jClient is a class that represents a client for performing DNS over HTTPS (DoH) lookups.
      * It allows the user to specify a list of resolvers to use for the lookups.
      */
-    private Doh4jClient(HttpClient client, Resolver... resolvers) {
-      this.client = client;
+    private Doh4jClient(Doh4jClientBuilder builder) {
+      this.cache = builder.cacheSize > 0 ? new Cache(builder.cacheSize) : null;
+
+      if (cache != null) {
+        cache.negativeCache(builder.negativeCacheSize >= 0 ? builder.negativeCacheSize :
+            Math.max(1, builder.cacheSize / DEFAULT_NEGATIVE_CACHE_RATIO));
+      }
+
+      this.snapshotFile = cache != null ? builder.snapshotFile : null;
+
+      if (snapshotFile != null) {
+        restoreSnapshot();
+        scheduleSnapshot(new WeakReference<>(this), builder.snapshotInterval,
+            builder.executor != null ? builder.executor : SnapshotWriter.EXECUTOR);
+      }
+
+      this.strategy = builder.strategy;
+      this.hedgeDelay = builder.hedgeDelay;
+      this.hedgePercentile = builder.hedgePercentile;
+      this.executor = builder.executor;
+      this.clientSubnet = builder.clientSubnet;
+      this.timeout = builder.timeout;
+      this.attemptTimeout = builder.attemptTimeout;
+      this.staleTimeout = cache != null && builder.staleWindow != null ? builder.staleTimeout : null;
+
+      if (staleTimeout != null) {
+        cache.serveStale(builder.staleWindow.toMillis());
+      }
+
+      this.adaptiveOrdering = builder.adaptiveOrdering;
+
+      if (!builder.resolvers.isEmpty()) {
+        this.resolvers = List.copyOf(builder.resolvers);
+      }
+
+      List<ResolverState> states = new ArrayList<>(resolvers.size());
+      HttpClient defaultClient = builder.client != null ? builder.client :
+          builder.executor != null ? builder.newClient().build() : client;
+
+      for (Resolver resolver : resolvers) {
+        HttpClient resolverClient = builder.clientFactory != null ? builder.clientFactory.apply(resolver) :
+            defaultClient;
+
+        states.add(new ResolverState(resolver, resolverClient, builder.failureThreshold, builder.coolDown.toNanos()));
+      }
 
-      if (resolvers.length != 0) {
-        this.resolvers = List.of(resolvers);
+      this.states = List.copyOf(states);
+      this.fallbackDepths = new AtomicLongArray(states.size());
+      this.listener = builder.listener;
+
+      if (builder.prewarmInterval != null) {
+        prewarm();
+        schedulePrewarm(new WeakReference<>(this), builder.prewarmInterval);
+      }
+
+      if (cache != null && builder.refreshAheadFraction > 0) {
+        cache.refreshAhead(builder.refreshAheadFraction, builder.refreshAheadHits, query -> {
+          if (log.isDebugEnabled()) {
+            log.debug("Refresh ahead {} and {} type", query.getName(), query.getType());
+          }
+
+          return lookupShared(query, deadline(timeout));
+        });
       }
     }
 
@@ -124,6 +281,8 @@ public class Doh4j {
      * first resolver fails to respond, i.e. unreachable, continues with the next resolver, until a resolver responds
      * or no resolvers are left.</p>
      *
+     * <p>Concurrent lookups of the same name and type share a single request to the resolvers.</p>
+     *
      * <p>Example of lookup with default resolvers (Google, Cloudflare, Quad9):</p>
      * <pre>{@code
      * Do4J.newClient()
@@ -143,12 +302,96 @@ public class Doh4j {
      * @param type the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
      * @return {@link Result} the result of the lookup
      * @throws Do4jLookupException if unable to connect to any of the resolvers
+     * @throws Do4jSerializeException if the name is not a valid domain name
+     * @see Doh4jClientBuilder#timeout(Duration)
      */
     public Result lookup(String name, int type) throws Do4jLookupException {
-      return resolvers.stream()
-          .flatMap(resolver -> doLookup(resolver, name, type))
-          .findFirst()
-          .orElseThrow(() -> new Do4jLookupException("Failed to lookup with provided resolvers"));
+      return lookup(name, type, timeout);
+    }
+
+    /**
+     * <p>Performs a synchronous DNS lookup like {@link #lookup(String, int)}, failing once the given timeout elapses.
+     * The timeout is a deadline shared by all resolvers: each attempt times out when the deadline passes, or after
+     * the attempt timeout if that is shorter, and no further resolvers are requested after the deadline.</p>
+     *
+     * <p>Example of a lookup bounded to 2 seconds:</p>
+     * <pre>{@code
+     * Do4J.newClient()
+     *  .lookup("example.com", Type.A, Duration.ofSeconds(2))
+     * }</pre>
+     *
+     * @param name    the domain name to lookup
+     * @param type    the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+     * @param timeout the time after which the lookup fails, or null for no timeout
+     * @return {@link Result} the result of the lookup
+     * @throws Do4jLookupException if unable to connect to any of the resolvers or the timeout elapsed
+     * @throws Do4jSerializeException if the name is not a valid domain name
+     * @see Doh4jClientBuilder#attemptTimeout(Duration)
+     */
+    public Result lookup(String name, int type, Duration timeout) throws Do4jLookupException {
+      return lookup(new Query(name, type, clientSubnet), timeout);
+    }
+
+    /**
+     * <p>Performs a synchronous DNS lookup like {@link #lookup(String, int)}, passing the given client subnet to the
+     * resolvers instead of the default set by {@link Doh4jClientBuilder#clientSubnet(ClientSubnet)}. Resolvers
+     * supporting EDNS Client Subnet (RFC 7871) then answer as if the lookup came from that subnet, so CDNs return
+     * edges close to it.</p>
+     *
+     * <p>Example of a lookup on behalf of a client in another network:</p>
+     * <pre>{@code
+     * Do4J.newClient()
+     *  .lookup("example.com", Type.A, ClientSubnet.of("198.51.100.0/24"))
+     * }</pre>
+     *
+     * @param name   the domain name to lookup
+     * @param type   the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+     * @param subnet the client subnet, or null to pass none
+     * @return {@link Result} the result of the lookup
+     * @throws Do4jLookupException if unable to connect to any of the resolvers or the timeout elapsed
+     * @throws Do4jSerializeException if the name is not a valid domain name
+     * @see Result#getScopePrefix()
+     */
+    public Result lookup(String name, int type, ClientSubnet subnet) throws Do4jLookupException {
+      return lookup(new Query(name, type, subnet), timeout);
+    }
+
+    private Result lookup(Query query, Duration timeout) throws Do4jLookupException {
+      MessageCodec.checkName(query.getName());
+
+      long deadline = deadline(timeout);
+      Result cached = fromCache(query);
+
+      if (cached != null) {
+        return cached;
+      }
+
+      if (staleTimeout != null && cache.getStale(query) != null) {
+        return await(resolveAsync(query, deadline), deadline);
+      }
+
+      SharedLookup shared = new SharedLookup(deadline);
+      CompletableFuture<Result> future = shared.future;
+      SharedLookup existing = share(query, shared);
+
+      if (existing != null) {
+        return await(existing.future, deadline);
+      }
+
+      try {
+        Result result = doLookup(query.getName(), query.getType(), query.getSubnet(), deadline);
+
+        toCache(query, result);
+        future.complete(result);
+
+        return result;
+      } catch (RuntimeException e) {
+        failed(query);
+        future.completeExceptionally(e);
+        throw e;
+      } finally {
+        inflight.remove(query, shared);
+      }
     }
 
     /**
@@ -156,6 +399,8 @@ public class Doh4j {
      * first resolver fails to respond, i.e. unreachable, continues with the next resolver, until a resolver responds
      * or no resolvers are left.</p>
      *
+     * <p>Concurrent lookups of the same name and type share a single request to the resolvers.</p>
+     *
      * <p>Example of lookup with default resolvers (Google, Cloudflare, Quad9):</p>
      * <pre>{@code
      * Do4J.newClient()
@@ -195,114 +440,1780 @@ public class Doh4j {
      * @see CompletableFuture#handle(BiFunction)
      * @see CompletableFuture#whenComplete(BiConsumer)
      * @see CompletableFuture#exceptionally(Function)
+     * @see Doh4jClientBuilder#timeout(Duration)
      */
     public CompletableFuture<Result> lookupAsync(String name, int type) {
-      return doLookupAsync(name, type, 0);
+      return lookupAsync(name, type, timeout);
+    }
+
+    /**
+     * <p>Performs an asynchronous DNS lookup like {@link #lookupAsync(String, int)}, completing exceptionally with a
+     * {@link Do4jLookupException} once the given timeout elapses. The timeout is a deadline shared by all resolvers:
+     * each attempt times out when the deadline passes, or after the attempt timeout if that is shorter, and no further
+     * resolvers are requested after the deadline.</p>
+     *
+     * @param name    the domain name to lookup
+     * @param type    the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+     * @param timeout the time after which the lookup fails, or null for no timeout
+     * @return {@link CompletableFuture<Result>} the asynchronous result of the lookup, completed exceptionally with a
+     * {@link Do4jSerializeException} if the name is not a valid domain name
+     * @see Doh4jClientBuilder#attemptTimeout(Duration)
+     */
+    public CompletableFuture<Result> lookupAsync(String name, int type, Duration timeout) {
+      return lookupAsync(new Query(name, type, clientSubnet), timeout);
+    }
+
+    /**
+     * Performs an asynchronous DNS lookup like {@link #lookupAsync(String, int)}, passing the given client subnet to
+     * the resolvers instead of the default set by {@link Doh4jClientBuilder#clientSubnet(ClientSubnet)}.
+     *
+     * @param name   the domain name to lookup
+     * @param type   the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+     * @param subnet the client subnet, or null to pass none
+     * @return {@link CompletableFuture<Result>} the asynchronous result of the lookup
+     * @see #lookup(String, int, ClientSubnet)
+     */
+    public CompletableFuture<Result> lookupAsync(String name, int type, ClientSubnet subnet) {
+      return lookupAsync(new Query(name, type, subnet), timeout);
+    }
+
+    /**
+     * Looks up a query given by the caller, passing the default client subnet unless the query has its own.
+     */
+    private CompletableFuture<Result> lookupAsync(Query query) {
+      return lookupAsync(query.getSubnet() != null ? query : query.withSubnet(clientSubnet), timeout);
     }
 
-    private CompletableFuture<Result> doLookupAsync(String name, int type, int resolverIndex) {
-      if (resolverIndex >= resolvers.size()) {
-        return CompletableFuture.failedFuture(new Do4jLookupException("Failed to lookup with all provided resolvers"));
+    private CompletableFuture<Result> lookupAsync(Query query, Duration timeout) {
+      try {
+        MessageCodec.checkName(query.getName());
+      } catch (Do4jSerializeException e) {
+        return CompletableFuture.failedFuture(e);
       }
 
-      Resolver resolver = resolvers.get(resolverIndex);
+      long deadline = deadline(timeout);
+      Result cached = fromCache(query);
 
-      if (log.isDebugEnabled()) {
-        log.debug("Perform async lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type);
+      if (cached != null) {
+        return CompletableFuture.completedFuture(cached);
       }
 
-      return client.sendAsync(getRequest(resolver, name, type), BodyHandlers.ofByteArray())
-          .thenApply(response -> Optional.ofNullable(deserialize(response)))
-          .exceptionally(e -> {
-            if (log.isDebugEnabled()) {
-              log.debug("Failed to lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type, e);
-            }
+      CompletableFuture<Result> result = resolveAsync(query, deadline);
 
-            return Optional.empty();
-          })
-          .thenCompose(result ->
-              result.map(CompletableFuture::completedFuture)
-                  .orElseGet(() -> doLookupAsync(name, type, resolverIndex + 1))
-          );
+      if (deadline == NO_DEADLINE || result.isDone()) {
+        return completeOnExecutor(result);
+      }
+
+      CompletableFuture<Result> bounded = new CompletableFuture<>();
+
+      result.orTimeout(deadline - System.nanoTime(), TimeUnit.NANOSECONDS).whenComplete((r, e) -> {
+        if (e == null) {
+          bounded.complete(r);
+        } else {
+          bounded.completeExceptionally(e instanceof TimeoutException ? new Do4jLookupException("Lookup timed out") : e);
+        }
+      });
+
+      return completeOnExecutor(bounded);
+    }
+
+    /**
+     * Resolves a query that missed the cache, sharing the lookup with concurrent callers. If serving stale results is
+     * enabled and an expired result is still within the stale window, the stale result is returned when the lookup
+     * fails or takes longer than the client timeout. While the resolvers are known to fail, the stale result is
+     * returned without a lookup.
+     */
+    private CompletableFuture<Result> resolveAsync(Query query, long deadline) {
+      Result stale = staleTimeout != null ? cache.getStale(query) : null;
+
+      if (stale != null && cache.isRecheckPending(query)) {
+        return CompletableFuture.completedFuture(stale);
+      }
+
+      CompletableFuture<Result> lookup = lookupShared(query, deadline);
+
+      if (stale == null) {
+        return lookup;
+      }
+
+      CompletableFuture<Result> result = new CompletableFuture<>();
+
+      lookup.whenComplete((r, e) -> result.complete(e == null ? r : stale));
+      delayed(staleTimeout).execute(() -> result.complete(stale));
+
+      return result;
     }
 
-    private Stream<Result> doLookup(Resolver resolver, String name, int type) throws Do4jLookupException {
+    private CompletableFuture<Result> lookupShared(Query query, long deadline) {
+      SharedLookup shared = new SharedLookup(deadline);
+      CompletableFuture<Result> future = shared.future;
+      SharedLookup existing = share(query, shared);
+
+      if (existing != null) {
+        return existing.future.copy();
+      }
+
+      CompletableFuture<Result> lookup;
+
       try {
-        if (log.isDebugEnabled()) {
-          log.debug("Perform lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type);
+        lookup = doLookupAsync(query.getName(), query.getType(), query.getSubnet(), deadline);
+      } catch (RuntimeException e) {
+        lookup = CompletableFuture.failedFuture(e);
+      }
+
+      lookup.whenComplete((result, e) -> {
+        if (e == null) {
+          toCache(query, result);
+        } else {
+          failed(query);
         }
 
-        return Stream.of(deserialize(client.send(getRequest(resolver, name, type), BodyHandlers.ofByteArray())));
-      } catch (IOException | InterruptedException | Do4jSerializeException e) {
-        if (log.isDebugEnabled()) {
-          log.debug("Failed to lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type, e);
+        inflight.remove(query, shared);
+
+        if (e == null) {
+          future.complete(result);
+        } else {
+          future.completeExceptionally(e);
         }
+      });
 
-        return Stream.empty();
-      }
+      return future.copy();
     }
 
-    private HttpRequest getRequest(Resolver resolver, String name, int type) {
-      return HttpRequest.newBuilder()
-          .uri(URI.create(String.format(URL_FORMAT, resolver.getUrl(), name, type)))
-          .method(resolver.getMethod().name(), HttpRequest.BodyPublishers.noBody())
-          .header("Content-Type", "application/dns-json")
-          .build();
+    /**
+     * Registers the given lookup as the one shared by concurrent callers of the query, unless a lookup already in
+     * flight runs at least until its deadline, which is returned to be joined instead. The attempts of a lookup are
+     * bounded by the deadline of the caller that started it, so a caller with a later deadline starts a lookup of its
+     * own and takes over the registration, rather than failing with the caller that gave up first.
+     *
+     * @return the lookup to join, or null if the given lookup was registered and must be performed
+     */
+    private SharedLookup share(Query query, SharedLookup lookup) {
+      while (true) {
+        SharedLookup existing = inflight.putIfAbsent(query, lookup);
+
+        if (existing == null) {
+          return null;
+        }
+
+        if (existing.deadline == NO_DEADLINE ||
+            (lookup.deadline != NO_DEADLINE && existing.deadline - lookup.deadline >= 0)) {
+          return existing;
+        }
+
+        if (inflight.replace(query, existing, lookup)) {
+          return null;
+        }
+      }
     }
 
-    private Result deserialize(HttpResponse<byte[]> response) throws Do4jLookupException {
-      if (response.body().length == 0) {
-        throw new Do4jSerializeException("Response body is empty");
+    /**
+     * <p>Writes the live entries of the response cache to the snapshot file, so a client created later with the same
+     * file starts with them. Snapshots are also written periodically, but writing one before shutting down keeps the
+     * results of the last interval.</p>
+     *
+     * @throws IOException if the snapshot cannot be written
+     * @throws IllegalStateException if the client has no snapshot file
+     * @see Doh4jClientBuilder#snapshot(Path, Duration)
+     */
+    public void snapshot() throws IOException {
+      if (snapshotFile == null) {
+        throw new IllegalStateException("Cache snapshots are not enabled");
       }
 
+      cache.snapshot(snapshotFile);
+    }
+
+    private void restoreSnapshot() {
       try {
-        return mapper.readValue(response.body(), Result.class);
-      } catch (IOException e) {
-        throw new Do4jSerializeException(e);
+        CacheSnapshot snapshot = CacheSnapshot.open(snapshotFile);
+
+        if (snapshot != null) {
+          cache.restore(snapshot);
+        }
+      } catch (IOException | Do4jSerializeException e) {
+        log.warn("Failed to restore cache snapshot {}", snapshotFile, e);
       }
     }
 
     /**
-     * Doh4jClientBuilder is a class that provides a builder for creating custom instances of Doh4jClient,
-     * providing your own resolvers, or custom {@link HttpClient} with {@link Doh4jClientBuilder#client(HttpClient)}.
+     * Writes snapshots periodically for as long as the client is reachable, on the given executor, as writing a
+     * snapshot blocks on file I/O and must not tie up a thread of the common pool.
      */
-    public static class Doh4jClientBuilder {
-      private List<Resolver> resolvers = new ArrayList<>();
-      private HttpClient client = Doh4j.client;
+    private static void scheduleSnapshot(WeakReference<Doh4jClient> reference, Duration interval, Executor executor) {
+      CompletableFuture.delayedExecutor(interval.toNanos(), TimeUnit.NANOSECONDS, executor).execute(() -> {
+        Doh4jClient client = reference.get();
 
-      /**
-       * Sets the HTTP client to use for performing DNS over HTTPS (DoH) lookups.
-       *
-       * @param client the HTTP client to use
-       * @return the Doh4jClientBuilder instance
-       */
-      public Doh4jClientBuilder client(HttpClient client) {
-        this.client = client;
-        return this;
+        if (client == null) {
+          return;
+        }
+
+        try {
+          client.snapshot();
+        } catch (IOException e) {
+          log.warn("Failed to write cache snapshot {}", client.snapshotFile, e);
+        }
+
+        scheduleSnapshot(reference, interval, executor);
+      });
+    }
+
+    /**
+     * <p>Performs a synchronous DNS lookup and follows the CNAME chain of the name, returning only the records of the
+     * given type owned by the end of the chain. Chains that a response leaves unfinished are continued with further
+     * lookups, up to 16 aliases in total.</p>
+     *
+     * <p>If caching is enabled, each CNAME record of the chain is also cached on its own, under its own TTL, as well as
+     * the final records under the name that owns them. Names whose chains share an alias or a target, such as the names
+     * served by the same CDN, continue from the cache once they reach it.</p>
+     *
+     * <p>Example of resolving the addresses of an aliased name:</p>
+     * <pre>{@code
+     * List<Answer> addresses = Do4J.newClient()
+     *  .resolve("www.example.com", Type.A)
+     *  .getAnswer()
+     * }</pre>
+     *
+     * @param name the domain name to resolve
+     * @param type the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+     * @return {@link Result} the status and authority section of the last response, and the records of the given type
+     * owned by the end of the chain as its answer
+     * @throws Do4jLookupException if unable to connect to any of the resolvers, the timeout elapsed, or the chain loops
+     *                             or exceeds 16 aliases
+     * @see Doh4jClient#lookup(String, int)
+     */
+    public Result resolve(String name, int type) throws Do4jLookupException {
+      if (type == Type.CNAME) {
+        return lookup(name, type);
       }
 
-      /**
-       * Adds a resolver to the Doh4jClientBuilder.
-       *
-       * @param url    The URL of the resolver, e.g. "https://dns.google/resolve"
-       * @param method The HTTP method to use when requesting resolver, e.g. "Method.GET"
-       * @return The Doh4jClientBuilder instance.
-       * @see Method
-       */
-      public Doh4jClientBuilder resolver(String url, Method method) {
-        resolvers.add(new Resolver(url, method));
-        return this;
+      long deadline = deadline(timeout);
+      String current = canonical(name);
+      Set<String> aliases = new HashSet<>();
+
+      for (int lookups = 0; lookups <= MAX_CNAME_CHAIN; lookups++) {
+        String target = cachedAlias(current);
+
+        if (target != null) {
+          current = alias(aliases, current, target);
+          continue;
+        }
+
+        if (isExpired(deadline)) {
+          throw new Do4jLookupException("Lookup timed out");
+        }
+
+        Result result = lookup(current, type, deadline == NO_DEADLINE ? null :
+            Duration.ofNanos(deadline - System.nanoTime()));
+        String owner = current;
+        Map<String, Answer> cnames = new HashMap<>();
+
+        for (Answer answer : result.getAnswer()) {
+          if (answer.getType() == Type.CNAME && answer.getName() != null && answer.getTarget() != null) {
+            cnames.putIfAbsent(canonical(answer.getName()), answer);
+          }
+        }
+
+        Answer cname;
+
+        while ((cname = cnames.get(current)) != null) {
+          toCache(new Query(current, Type.CNAME, clientSubnet), resultOf(0, List.of(cname), List.of()));
+          current = alias(aliases, current, canonical(cname.getTarget()));
+        }
+
+        List<Answer> records = new ArrayList<>();
+
+        for (Answer answer : result.getAnswer()) {
+          if (answer.getType() == type && answer.getName() != null && canonical(answer.getName()).equals(current)) {
+            records.add(answer);
+          }
+        }
+
+        if (!records.isEmpty() || current.equals(owner) || result.getStatus() != 0) {
+          Result resolved = resultOf(result.getStatus(), records, result.getAuthority());
+
+          if (!current.equals(owner) && !records.isEmpty()) {
+            toCache(new Query(current, type, clientSubnet), resolved);
+          }
+
+          return resolved;
+        }
       }
 
-      /**
-       * Adds a resolver to the Doh4jClientBuilder.
-       *
-       * @param url The URL of the resolver, e.g. "https://dns.google/resolve"
-       * @return The Doh4jClientBuilder instance.
-       * @see Method
-       */
-      public Doh4jClientBuilder resolver(String url) {
-        resolvers.add(new Resolver(url));
+      throw new Do4jLookupException("CNAME chain of " + name + " exceeds " + MAX_CNAME_CHAIN + " aliases");
+    }
+
+    /**
+     * Returns the target of the cached CNAME record of the given name, or null if there is none.
+     */
+    private String cachedAlias(String name) {
+      // Probes without counting a miss, as most names have no CNAME record and are then looked up themselves
+      Result cached = cache != null ? cache.peek(new Query(name, Type.CNAME, clientSubnet)) : null;
+
+      if (cached != null) {
+        for (Answer answer : cached.getAnswer()) {
+          if (answer.getType() == Type.CNAME && answer.getTarget() != null) {
+            return canonical(answer.getTarget());
+          }
+        }
+      }
+
+      return null;
+    }
+
+    /**
+     * Follows an alias of a CNAME chain, failing if the chain loops or exceeds the maximum length.
+     */
+    private static String alias(Set<String> aliases, String name, String target) {
+      if (!aliases.add(name)) {
+        throw new Do4jLookupException("CNAME chain of " + name + " loops");
+      }
+
+      if (aliases.size() > MAX_CNAME_CHAIN) {
+        throw new Do4jLookupException("CNAME chain of " + name + " exceeds " + MAX_CNAME_CHAIN + " aliases");
+      }
+
+      return target;
+    }
+
+    /**
+     * Returns the name in lower case with a trailing dot, so names of records compare equal regardless of case.
+     */
+    private static String canonical(String name) {
+      String lowerCase = name.toLowerCase(Locale.ROOT);
+
+      return lowerCase.endsWith(".") ? lowerCase : lowerCase + ".";
+    }
+
+    private static Result resultOf(int status, List<Answer> answer, List<Answer> authority) {
+      Result result = new Result();
+
+      result.setStatus(status);
+      result.setAnswer(answer);
+      result.setAuthority(authority);
+
+      return result;
+    }
+
+    /**
+     * <p>Performs concurrent {@link Type#A} and {@link Type#AAAA} lookups and returns the addresses of the name, waiting
+     * for both lookups. Addresses are ordered as recommended by
+     * <a href="https://www.rfc-editor.org/rfc/rfc8305#section-4">RFC 8305</a> for Happy Eyeballs connection attempts:
+     * IPv6 and IPv4 addresses alternate, starting with IPv6. Addresses are created from the answers directly, without
+     * involving the name service of the JVM, and carry the given name as their host name.</p>
+     *
+     * <p>Example of lookup with default resolvers (Google, Cloudflare, Quad9):</p>
+     * <pre>{@code
+     * InetAddress[] addresses = Do4J.newClient()
+     *  .lookupAddresses("example.com")
+     * }</pre>
+     *
+     * @param name the domain name to lookup
+     * @return the addresses of the name, empty if the name has no addresses
+     * @throws Do4jLookupException if both lookups fail
+     * @see Doh4jClient#lookupAddresses(String, Duration)
+     */
+    public InetAddress[] lookupAddresses(String name) throws Do4jLookupException {
+      return lookupAddresses(name, null);
+    }
+
+    /**
+     * <p>Performs concurrent {@link Type#A} and {@link Type#AAAA} lookups like {@link #lookupAddresses(String)}, but
+     * returns early as described in RFC 8305, section 3: at once when the {@link Type#AAAA} lookup completes first
+     * with addresses, or when the {@link Type#A} lookup completes first with addresses and the {@link Type#AAAA}
+     * lookup has not completed within the given resolution delay. The addresses of the late lookup are then left out.
+     * RFC 8305 recommends a resolution delay of 50 milliseconds.</p>
+     *
+     * @param name            the domain name to lookup
+     * @param resolutionDelay the time to wait for the other lookup once one has returned addresses, or null to wait
+     *                        for both lookups
+     * @return the addresses of the name, empty if the name has no addresses
+     * @throws Do4jLookupException if both lookups fail
+     * @see Doh4jClient#lookupAddressesAsync(String, Duration)
+     */
+    public InetAddress[] lookupAddresses(String name, Duration resolutionDelay) throws Do4jLookupException {
+      try {
+        return lookupAddressesAsync(name, resolutionDelay).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new Do4jLookupException("Interrupted while waiting for lookup", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Do4jLookupException) {
+          throw (Do4jLookupException) e.getCause();
+        }
+
+        throw new Do4jLookupException("Failed to lookup with provided resolvers", e.getCause());
+      }
+    }
+
+    /**
+     * <p>Performs asynchronous {@link Type#A} and {@link Type#AAAA} lookups like
+     * {@link #lookupAddresses(String, Duration)}. Both queries are sent at once, so with HTTP/2 resolvers they are
+     * multiplexed over the same connection and the lookup takes a single round trip.</p>
+     *
+     * <p>If one of the lookups fails, the addresses of the other one are returned. The returned future fails only if
+     * both lookups fail.</p>
+     *
+     * @param name            the domain name to lookup
+     * @param resolutionDelay the time to wait for the other lookup once one has returned addresses, or null to wait
+     *                        for both lookups
+     * @return {@link CompletableFuture} the asynchronous addresses of the name
+     */
+    public CompletableFuture<InetAddress[]> lookupAddressesAsync(String name, Duration resolutionDelay) {
+      CompletableFuture<Result> aaaa = lookupAsync(name, Type.AAAA);
+      CompletableFuture<Result> a = lookupAsync(name, Type.A);
+      CompletableFuture<InetAddress[]> addresses = new CompletableFuture<>();
+
+      BiConsumer<Result, Throwable> completed = (result, e) -> {
+        if (a.isDone() && aaaa.isDone()) {
+          if (a.isCompletedExceptionally() && aaaa.isCompletedExceptionally()) {
+            a.whenComplete((ignored, error) -> addresses.completeExceptionally(
+                error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+          } else {
+            addresses.complete(interleave(name, aaaa, a));
+          }
+        } else if (resolutionDelay != null && e == null && !result.getAnswer().isEmpty()) {
+          // RFC 8305, section 3: IPv6 addresses are used as soon as they arrive, while IPv4 addresses arriving first
+          // wait for the resolution delay to give the AAAA lookup a chance to complete
+          if (aaaa.isDone()) {
+            addresses.complete(interleave(name, aaaa, a));
+          } else {
+            delayed(resolutionDelay).execute(() -> addresses.complete(interleave(name, aaaa, a)));
+          }
+        }
+      };
+
+      aaaa.whenComplete(completed);
+      a.whenComplete(completed);
+
+      return addresses;
+    }
+
+    /**
+     * Returns the addresses of the lookups that completed successfully so far, alternating between IPv6 and IPv4
+     * addresses as described in RFC 8305, section 4.
+     */
+    private InetAddress[] interleave(String name, CompletableFuture<Result> aaaa, CompletableFuture<Result> a) {
+      List<InetAddress> ipv6 = new ArrayList<>();
+      List<InetAddress> ipv4 = new ArrayList<>();
+
+      if (aaaa.isDone() && !aaaa.isCompletedExceptionally()) {
+        addAddresses(name, aaaa.join(), ipv6);
+      }
+
+      if (a.isDone() && !a.isCompletedExceptionally()) {
+        addAddresses(name, a.join(), ipv4);
+      }
+
+      InetAddress[] addresses = new InetAddress[ipv6.size() + ipv4.size()];
+
+      for (int i = 0, i6 = 0, i4 = 0; i < addresses.length; i++) {
+        addresses[i] = i6 < ipv6.size() && (i % 2 == 0 || i4 == ipv4.size()) ? ipv6.get(i6++) : ipv4.get(i4++);
+      }
+
+      return addresses;
+    }
+
+    private void addAddresses(String name, Result result, List<InetAddress> addresses) {
+      String host = name.length() > 1 && name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+
+      for (Answer answer : result.getAnswer()) {
+        byte[] address = answer.getAddressBytes();
+
+        if (address != null) {
+          try {
+            addresses.add(InetAddress.getByAddress(host, address));
+          } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      }
+    }
+
+    /**
+     * <p>Performs asynchronous DNS lookups for a batch of queries, with at most 64 lookups in flight at a time.</p>
+     *
+     * @param queries the queries to lookup
+     * @return the asynchronous result of each distinct query, in the iteration order of the queries
+     * @see Doh4jClient#lookupAll(Collection, int)
+     */
+    public Map<Query, CompletableFuture<Result>> lookupAll(Collection<Query> queries) {
+      return lookupAll(queries, DEFAULT_BATCH_PARALLELISM);
+    }
+
+    /**
+     * <p>Performs asynchronous DNS lookups for a batch of queries, with at most the given number of lookups in flight
+     * at a time. Repeated queries are looked up once, and each query falls back to the next resolver independently
+     * of the others, exactly like {@link Doh4jClient#lookupAsync(String, int)}.</p>
+     *
+     * <p>Lookups to the same resolver are multiplexed over shared HTTP/2 connections by the HTTP client, so a batch
+     * needs only a few connections per resolver.</p>
+     *
+     * <p>Example of waiting for all lookups of a batch:</p>
+     * <pre>{@code
+     * Map<Query, CompletableFuture<Result>> results = Do4J.newClient()
+     *  .lookupAll(List.of(new Query("example.com", Type.A), new Query("example.org", Type.A)), 16);
+     *
+     * CompletableFuture.allOf(results.values().toArray(CompletableFuture[]::new))
+     *  .handle((ignored, e) -> results) // Individual lookups may fail, see each future
+     * }</pre>
+     *
+     * @param queries     the queries to lookup
+     * @param parallelism the maximum number of lookups in flight at a time
+     * @return the asynchronous result of each distinct query, in the iteration order of the queries
+     */
+    public Map<Query, CompletableFuture<Result>> lookupAll(Collection<Query> queries, int parallelism) {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("Parallelism must be positive");
+      }
+
+      Map<Query, CompletableFuture<Result>> results = new LinkedHashMap<>();
+
+      for (Query query : queries) {
+        results.putIfAbsent(query, new CompletableFuture<>());
+      }
+
+      Batch batch = new Batch(results);
+
+      for (int i = 0; i < Math.min(parallelism, results.size()); i++) {
+        batch.drain();
+      }
+
+      return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * <p>Looks up a stream of queries and publishes the result of each query, with at most the given number of queries
+     * outstanding at a time. A query is outstanding from the moment it is requested from the publisher of queries until its result
+     * is delivered to the subscriber, so memory and requests in flight stay bounded however fast the queries are
+     * published: queries are requested only as fast as the subscriber consumes results.</p>
+     *
+     * <p>Each query is looked up like {@link Doh4jClient#lookupAsync(String, int)}, including the response cache and
+     * the fallback to other resolvers. Every {@link QueryResult} carries its query, so results can be matched to their
+     * queries with either ordering. A lookup that fails on every resolver does not fail the stream: its
+     * {@link QueryResult} holds the error instead, and the remaining queries are still looked up. The returned publisher
+     * is cold: every subscriber subscribes to the publisher of queries separately.</p>
+     *
+     * <p>Example of resolving a stream of names in the order they are published:</p>
+     * <pre>{@code
+     * SubmissionPublisher<Query> queries = new SubmissionPublisher<>();
+     *
+     * Do4J.newClient()
+     *  .lookupAll(queries, 64, Ordering.ORDERED)
+     *  .subscribe(subscriber);
+     *
+     * queries.submit(new Query("example.com", Type.A)); // Blocks while the subscriber is behind
+     * }</pre>
+     *
+     * @param queries     the publisher of queries to lookup
+     * @param parallelism the maximum number of queries outstanding at a time
+     * @param ordering    whether results are published in the order of their queries or as they complete
+     * @return a publisher of the results of each query
+     * @see Ordering
+     */
+    public Flow.Publisher<QueryResult> lookupAll(Flow.Publisher<Query> queries, int parallelism, Ordering ordering) {
+      Objects.requireNonNull(queries, "Queries cannot be null");
+      Objects.requireNonNull(ordering, "Ordering cannot be null");
+
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("Parallelism must be positive");
+      }
+
+      return new LookupPublisher<>(queries, query -> lookupAsync(query).handle((result, e) ->
+          new QueryResult(query, result, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e)),
+          parallelism, ordering);
+    }
+
+    /**
+     * <p>Performs reverse (PTR) lookups of addresses and ranges of addresses, and publishes the result of each address.
+     * Targets are IPv4 or IPv6 addresses, such as {@code 192.0.2.1}, or ranges in CIDR notation, such as
+     * {@code 192.0.2.0/24} or {@code 2001:db8::/120}. Ranges are expanded lazily as results are consumed, and reverse
+     * names are built directly from the address bytes.</p>
+     *
+     * <p>Lookups run like {@link Doh4jClient#lookupAll(Flow.Publisher, int, Ordering)}, including its bound on
+     * outstanding lookups, the response cache and failed lookups not failing the stream: a {@link ReverseResult} holds
+     * the error instead, and the remaining addresses are still looked up.</p>
+     *
+     * <p>Example of resolving the host names of a range:</p>
+     * <pre>{@code
+     * Do4J.newClient()
+     *  .lookupReverse(List.of("192.0.2.0/24", "2001:db8::1"), 64, Ordering.COMPLETION)
+     *  .subscribe(subscriber); // Receives a ReverseResult for each of the 257 addresses
+     * }</pre>
+     *
+     * @param targets     the addresses and ranges of addresses to lookup
+     * @param parallelism the maximum number of addresses outstanding at a time
+     * @param ordering    whether results are published in the order of the addresses or as they complete
+     * @return a publisher of the results of each address
+     * @throws IllegalArgumentException if a target is not an address or a range of addresses
+     */
+    public Flow.Publisher<ReverseResult> lookupReverse(Collection<String> targets, int parallelism,
+                                                       Ordering ordering) {
+      Objects.requireNonNull(ordering, "Ordering cannot be null");
+
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("Parallelism must be positive");
+      }
+
+      List<AddressRange> ranges = new ArrayList<>(targets.size());
+
+      for (String target : targets) {
+        ranges.add(AddressRange.parse(Objects.requireNonNull(target, "Target cannot be null")));
+      }
+
+      Flow.Publisher<byte[]> addresses = new IteratorPublisher<>(() -> AddressRange.iterator(ranges));
+
+      return new LookupPublisher<>(addresses, this::lookupReverse, parallelism, ordering);
+    }
+
+    private CompletableFuture<ReverseResult> lookupReverse(byte[] address) {
+      InetAddress inetAddress;
+
+      try {
+        inetAddress = InetAddress.getByAddress(address);
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e);
+      }
+
+      return lookupAsync(Query.reverseName(address), Type.PTR).handle((result, e) ->
+          new ReverseResult(inetAddress, result, e instanceof CompletionException && e.getCause() != null ?
+              e.getCause() : e));
+    }
+
+    /**
+     * Batch hands out the queries of a {@link Doh4jClient#lookupAll(Collection, int)} call to a bounded number of
+     * workers, each of which starts its next lookup when the previous one completes.
+     */
+    private class Batch {
+      private final Map<Query, CompletableFuture<Result>> results;
+      private final Queue<Query> pending;
+
+      private Batch(Map<Query, CompletableFuture<Result>> results) {
+        this.results = results;
+        this.pending = new ConcurrentLinkedQueue<>(results.keySet());
+      }
+
+      /**
+       * Starts pending lookups until one of them does not complete immediately, e.g. on cache hits, and continues
+       * once it does. Looping rather than recursing keeps the stack flat for batches served from the cache.
+       */
+      private void drain() {
+        Query query;
+
+        while ((query = pending.poll()) != null) {
+          CompletableFuture<Result> result = results.get(query);
+          CompletableFuture<Result> lookup = lookupAsync(query);
+
+          if (!lookup.isDone()) {
+            lookup.whenComplete((r, e) -> {
+              complete(result, r, e);
+              drain();
+            });
+
+            return;
+          }
+
+          lookup.whenComplete((r, e) -> complete(result, r, e));
+        }
+      }
+
+      private void complete(CompletableFuture<Result> result, Result r, Throwable e) {
+        if (e == null) {
+          result.complete(r);
+        } else {
+          result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        }
+      }
+    }
+
+    /**
+     * Returns a snapshot of the response cache counters. If caching is disabled, all counters are zero.
+     *
+     * @return {@link CacheStats} the cache hit, miss and eviction counters
+     * @see Doh4jClientBuilder#cache(int)
+     */
+    public CacheStats getCacheStats() {
+      return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * <p>Returns a snapshot of the metrics of this client: request counts, in-flight requests, errors by cause and
+     * latency percentiles of each resolver, the fallback depth of lookups and the response cache counters.</p>
+     *
+     * <p>Metrics are recorded without locks or allocation on every request and are always enabled.</p>
+     *
+     * @return {@link Metrics} the metrics of this client
+     * @see Doh4jClientBuilder#metricsListener(MetricsListener)
+     */
+    public Metrics getMetrics() {
+      List<ResolverMetrics> resolverMetrics = new ArrayList<>(states.size());
+
+      for (ResolverState state : states) {
+        resolverMetrics.add(state.metrics());
+      }
+
+      long[] depths = new long[fallbackDepths.length()];
+
+      for (int i = 0; i < depths.length; i++) {
+        depths[i] = fallbackDepths.get(i);
+      }
+
+      return new Metrics(List.copyOf(resolverMetrics), depths, failedLookups.sum(), getCacheStats());
+    }
+
+    private Result fromCache(Query query) {
+      return cache != null ? cache.get(query) : null;
+    }
+
+    private void toCache(Query query, Result result) {
+      if (cache != null) {
+        cache.put(query, result);
+      }
+    }
+
+    private void failed(Query query) {
+      if (cache != null) {
+        cache.failed(query);
+      }
+    }
+
+    /**
+     * Waits for a lookup started by another caller, unwrapping its failure into a {@link Do4jLookupException}.
+     */
+    private Result await(CompletableFuture<Result> future, long deadline) throws Do4jLookupException {
+      try {
+        return deadline == NO_DEADLINE ? future.get() : future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        throw new Do4jLookupException("Lookup timed out", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new Do4jLookupException("Interrupted while waiting for lookup", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Do4jLookupException) {
+          throw (Do4jLookupException) e.getCause();
+        }
+
+        throw new Do4jLookupException("Failed to lookup with provided resolvers", e.getCause());
+      }
+    }
+
+    private Result doLookup(String name, int type, ClientSubnet subnet, long deadline) throws Do4jLookupException {
+      List<ResolverState> plan = plan();
+
+      if (strategy != Strategy.SEQUENTIAL) {
+        return await(new Race(plan, name, type, subnet, deadline).start(), deadline);
+      }
+
+      return IntStream.range(0, plan.size())
+          .boxed()
+          .flatMap(index -> doLookup(plan.get(index), name, type, subnet, deadline)
+              .peek(result -> recordLookup(name, type, index)))
+          .findFirst()
+          .orElseThrow(() -> {
+            recordLookup(name, type, -1);
+            return new Do4jLookupException(isExpired(deadline) ? "Lookup timed out" :
+                "Failed to lookup with provided resolvers");
+          });
+    }
+
+    private CompletableFuture<Result> doLookupAsync(String name, int type, ClientSubnet subnet, long deadline) {
+      List<ResolverState> plan = plan();
+
+      if (strategy != Strategy.SEQUENTIAL) {
+        return new Race(plan, name, type, subnet, deadline).start();
+      }
+
+      return doLookupAsync(plan, name, type, subnet, deadline, 0);
+    }
+
+    /**
+     * Returns an executor running tasks after the given delay on the executor of this client, or on the default
+     * executor of {@link CompletableFuture} if there is none.
+     */
+    private Executor delayed(Duration delay) {
+      return executor != null ?
+          CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS, executor) :
+          CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a future completing on the executor of this client, so dependent stages of callers run on it rather than
+     * on the thread that completed the lookup.
+     */
+    private CompletableFuture<Result> completeOnExecutor(CompletableFuture<Result> future) {
+      if (executor == null || future.isDone()) {
+        return future;
+      }
+
+      return future.whenCompleteAsync((result, e) -> {
+      }, executor);
+    }
+
+    /**
+     * Returns the deadline of a lookup with the given timeout in {@link System#nanoTime()} units, or
+     * {@link #NO_DEADLINE} if the timeout is null.
+     */
+    private static long deadline(Duration timeout) {
+      if (timeout == null) {
+        return NO_DEADLINE;
+      }
+
+      long now = System.nanoTime();
+
+      return now + Math.min(timeout.toNanos(), NO_DEADLINE - 1 - now);
+    }
+
+    private static boolean isExpired(long deadline) {
+      return deadline != NO_DEADLINE && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns the timeout of the next attempt of a lookup, the time left until the deadline or the attempt timeout,
+     * whichever is shorter, or null if neither applies. Returns {@link Duration#ZERO} if the deadline has passed.
+     */
+    private Duration attemptTimeout(long deadline) {
+      if (deadline == NO_DEADLINE) {
+        return attemptTimeout;
+      }
+
+      long remaining = deadline - System.nanoTime();
+
+      if (remaining <= 0) {
+        return Duration.ZERO;
+      }
+
+      return attemptTimeout != null && attemptTimeout.toNanos() < remaining ? attemptTimeout :
+          Duration.ofNanos(remaining);
+    }
+
+    /**
+     * Returns the resolvers to request for a single lookup, skipping resolvers with an open circuit and, if adaptive
+     * ordering is enabled, ordered by their expected time to a successful answer. If every circuit is open, all
+     * resolvers are returned in their configured order, as failing fast would not serve the caller any better.
+     */
+    private List<ResolverState> plan() {
+      long now = System.nanoTime();
+      List<ResolverState> plan = new ArrayList<>(states.size());
+
+      for (ResolverState state : states) {
+        if (state.allowRequest(now)) {
+          plan.add(state);
+        }
+      }
+
+      if (plan.isEmpty()) {
+        return states;
+      }
+
+      if (adaptiveOrdering) {
+        plan.sort(Comparator.comparingDouble(ResolverState::score));
+      }
+
+      return plan;
+    }
+
+    private CompletableFuture<Result> doLookupAsync(List<ResolverState> plan, String name, int type,
+                                                    ClientSubnet subnet, long deadline, int resolverIndex) {
+      if (resolverIndex >= plan.size() || isExpired(deadline)) {
+        recordLookup(name, type, -1);
+        return CompletableFuture.failedFuture(new Do4jLookupException(isExpired(deadline) ? "Lookup timed out" :
+            "Failed to lookup with all provided resolvers"));
+      }
+
+      ResolverState state = plan.get(resolverIndex);
+      Resolver resolver = state.getResolver();
+
+      if (log.isDebugEnabled()) {
+        log.debug("Perform async lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type);
+      }
+
+      HttpRequest request;
+
+      try {
+        request = state.getTemplate().request(name, type, subnet, attemptTimeout(deadline));
+      } catch (RuntimeException e) {
+        // The request cannot be built for any resolver, so it fails without being charged to one
+        return CompletableFuture.failedFuture(e);
+      }
+
+      long start = System.nanoTime();
+
+      return send(state, request)
+          .thenApply(response -> Optional.ofNullable(response.body()))
+          .whenComplete((result, e) -> record(state, start, e))
+          .exceptionally(e -> {
+            if (log.isDebugEnabled()) {
+              log.debug("Failed to lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type, e);
+            }
+
+            return Optional.empty();
+          })
+          .thenCompose(result -> {
+            if (result.isEmpty()) {
+              return doLookupAsync(plan, name, type, subnet, deadline, resolverIndex + 1);
+            }
+
+            recordLookup(name, type, resolverIndex);
+            return CompletableFuture.completedFuture(result.get());
+          });
+    }
+
+    private CompletableFuture<HttpResponse<Result>> send(ResolverState state, HttpRequest request) {
+      state.onSend();
+
+      return state.getClient().sendAsync(request, ResultSubscriber.handler(state.getResolver().getFormat()));
+    }
+
+    /**
+     * Opens a connection to each resolver, or keeps the open one from idling out, by sending a query for the root name
+     * servers and discarding the response.
+     */
+    private void prewarm() {
+      for (ResolverState state : states) {
+        Resolver resolver = state.getResolver();
+
+        state.getClient()
+            .sendAsync(state.getTemplate().request(".", Type.NS, null), HttpResponse.BodyHandlers.discarding())
+            .whenComplete((response, e) -> {
+              if (e != null && log.isDebugEnabled()) {
+                log.debug("Failed to prewarm connection to {} resolver", resolver.getUrl(), e);
+              }
+            });
+      }
+    }
+
+    /**
+     * Prewarms connections periodically for as long as the client is reachable.
+     */
+    private static void schedulePrewarm(WeakReference<Doh4jClient> reference, Duration interval) {
+      CompletableFuture.delayedExecutor(interval.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+        Doh4jClient client = reference.get();
+
+        if (client != null) {
+          client.prewarm();
+          schedulePrewarm(reference, interval);
+        }
+      });
+    }
+
+    /**
+     * Records the outcome of a request to the resolver in its health state. Cancelled requests, i.e. losers of a
+     * race, are not recorded.
+     */
+    private void record(ResolverState state, long start, Throwable e) {
+      long now = System.nanoTime();
+      ErrorCause cause = null;
+
+      if (e == null) {
+        state.onSuccess(now - start);
+      } else if (e instanceof CancellationException || e.getCause() instanceof CancellationException) {
+        state.onCancel();
+        return;
+      } else {
+        cause = ErrorCause.of(e);
+        state.onFailure(now, now - start, cause);
+      }
+
+      if (listener != null) {
+        listener.onRequest(state.getResolver(), now - start, cause);
+      }
+    }
+
+    /**
+     * Records the outcome of a lookup that was not answered from the cache.
+     *
+     * @param fallbackDepth the index of the answering resolver in the plan, or -1 if all resolvers failed
+     */
+    private void recordLookup(String name, int type, int fallbackDepth) {
+      if (fallbackDepth < 0) {
+        failedLookups.increment();
+      } else {
+        fallbackDepths.incrementAndGet(fallbackDepth);
+      }
+
+      if (listener != null) {
+        listener.onLookup(name, type, fallbackDepth);
+      }
+    }
+
+    /**
+     * SnapshotWriter holds the thread writing the periodic snapshots of clients built without an executor. The single
+     * daemon thread is started on the first snapshot and stops after a minute without one.
+     */
+    private static class SnapshotWriter {
+      private final static Executor EXECUTOR = newExecutor();
+
+      private static Executor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "doh4j-snapshot");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+      }
+    }
+
+    /**
+     * SharedLookup is a lookup in flight together with the deadline bounding its attempts.
+     */
+    private static class SharedLookup {
+      private final CompletableFuture<Result> future = new CompletableFuture<>();
+      private final long deadline;
+
+      private SharedLookup(long deadline) {
+        this.deadline = deadline;
+      }
+    }
+
+    /**
+     * Race sends a lookup to several resolvers concurrently according to the {@link Strategy#HEDGED} or
+     * {@link Strategy#RACE} strategy, completing with the first successful result and cancelling the other requests.
+     */
+    private class Race {
+      private final List<ResolverState> plan;
+      private final String name;
+      private final int type;
+      private final ClientSubnet subnet;
+      private final long deadline;
+      private final CompletableFuture<Result> result = new CompletableFuture<>();
+      private final List<CompletableFuture<HttpResponse<Result>>> exchanges = new CopyOnWriteArrayList<>();
+      private final AtomicInteger started = new AtomicInteger();
+      private final AtomicInteger failed = new AtomicInteger();
+
+      private Race(List<ResolverState> plan, String name, int type, ClientSubnet subnet, long deadline) {
+        this.plan = plan;
+        this.name = name;
+        this.type = type;
+        this.subnet = subnet;
+        this.deadline = deadline;
+      }
+
+      private CompletableFuture<Result> start() {
+        if (strategy == Strategy.RACE) {
+          for (int i = 0; i < plan.size(); i++) {
+            launch();
+          }
+        } else {
+          launch();
+        }
+
+        return result;
+      }
+
+      private void launch() {
+        int index = started.getAndIncrement();
+
+        if (index >= plan.size() || result.isDone()) {
+          return;
+        }
+
+        Duration timeout = attemptTimeout(deadline);
+
+        if (Duration.ZERO.equals(timeout)) {
+          if (result.completeExceptionally(new Do4jLookupException("Lookup timed out"))) {
+            recordLookup(name, type, -1);
+          }
+
+          return;
+        }
+
+        ResolverState state = plan.get(index);
+        Resolver resolver = state.getResolver();
+
+        if (log.isDebugEnabled()) {
+          log.debug("Perform {} lookup with {} resolver for {} and {} type", strategy, resolver.getUrl(), name, type);
+        }
+
+        HttpRequest request;
+
+        try {
+          request = state.getTemplate().request(name, type, subnet, timeout);
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);
+          return;
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<Result>> exchange = send(state, request);
+        exchanges.add(exchange);
+
+        exchange.thenApply(HttpResponse::body)
+            .whenComplete((r, e) -> {
+              record(state, start, e);
+
+              if (e == null) {
+                if (result.complete(r)) {
+                  recordLookup(name, type, index);
+                  exchanges.forEach(other -> other.cancel(true));
+                }
+
+                return;
+              }
+
+              if (log.isDebugEnabled()) {
+                log.debug("Failed to lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type, e);
+              }
+
+              if (failed.incrementAndGet() >= plan.size()) {
+                recordLookup(name, type, -1);
+                result.completeExceptionally(new Do4jLookupException("Failed to lookup with all provided resolvers"));
+              } else if (strategy == Strategy.HEDGED) {
+                launch();
+              }
+            });
+
+        if (strategy == Strategy.HEDGED && index + 1 < plan.size()) {
+          delayed(hedgeDelay(state)).execute(() -> {
+            if (started.get() == index + 1) {
+              launch();
+            }
+          });
+        }
+      }
+    }
+
+    /**
+     * Returns the time to wait for the given resolver before hedging: its latency at the hedge percentile once it has
+     * enough samples, otherwise the hedge delay.
+     */
+    private Duration hedgeDelay(ResolverState state) {
+      if (hedgePercentile > 0) {
+        long latency = state.latencyPercentile(hedgePercentile, System.nanoTime());
+
+        if (latency >= 0) {
+          return Duration.ofNanos(latency);
+        }
+      }
+
+      return hedgeDelay;
+    }
+
+    private Stream<Result> doLookup(ResolverState state, String name, int type, ClientSubnet subnet, long deadline)
+        throws Do4jLookupException {
+      Resolver resolver = state.getResolver();
+      Duration timeout = attemptTimeout(deadline);
+      long start = System.nanoTime();
+
+      if (Duration.ZERO.equals(timeout)) {
+        return Stream.empty();
+      }
+
+      // Built outside the try, as a request that cannot be built is not a failure of the resolver
+      HttpRequest request = state.getTemplate().request(name, type, subnet, timeout);
+      Throwable failure = null;
+
+      if (log.isDebugEnabled()) {
+        log.debug("Perform lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type);
+      }
+
+      state.onSend();
+
+      // The outcome is recorded in finally, so every sent request leaves the in-flight count whatever is thrown
+      try {
+        Result result = state.getClient()
+            .send(request, ResultSubscriber.handler(resolver.getFormat()))
+            .body();
+
+        return Stream.of(result);
+      } catch (InterruptedException e) {
+        failure = e;
+        Thread.currentThread().interrupt();
+        throw new Do4jLookupException("Interrupted while waiting for lookup", e);
+      } catch (IOException | Do4jSerializeException e) {
+        failure = e;
+
+        if (log.isDebugEnabled()) {
+          log.debug("Failed to lookup with {} resolver for {} and {} type", resolver.getUrl(), name, type, e);
+        }
+
+        return Stream.empty();
+      } catch (RuntimeException | Error e) {
+        failure = e;
+        throw e;
+      } finally {
+        record(state, start, failure);
+      }
+    }
+
+    /**
+     * Doh4jClientBuilder is a class that provides a builder for creating custom instances of Doh4jClient,
+     * providing your own resolvers, or custom {@link HttpClient} with {@link Doh4jClientBuilder#client(HttpClient)}.
+     */
+    public static class Doh4jClientBuilder {
+      private List<Resolver> resolvers = new ArrayList<>();
+      private HttpClient client;
+      private Executor executor;
+      private int cacheSize;
+      private int negativeCacheSize = -1;
+      private Path snapshotFile;
+      private Duration snapshotInterval;
+      private Strategy strategy = Strategy.SEQUENTIAL;
+      private Duration hedgeDelay = Duration.ofMillis(100);
+      private double hedgePercentile;
+      private int failureThreshold;
+      private Duration coolDown = Duration.ofSeconds(30);
+      private boolean adaptiveOrdering;
+      private double refreshAheadFraction;
+      private int refreshAheadHits;
+      private Duration staleWindow;
+      private Duration staleTimeout;
+      private Function<Resolver, HttpClient> clientFactory;
+      private Duration prewarmInterval;
+      private MetricsListener listener;
+      private ClientSubnet clientSubnet;
+      private Duration timeout;
+      private Duration attemptTimeout;
+
+      /**
+       * Sets the HTTP client to use for performing DNS over HTTPS (DoH) lookups.
+       *
+       * @param client the HTTP client to use
+       * @return the Doh4jClientBuilder instance
+       */
+      public Doh4jClientBuilder client(HttpClient client) {
+        this.client = client;
+        return this;
+      }
+
+      /**
+       * <p>Gives each resolver its own HTTP client created by the given factory, instead of sharing the client set by
+       * {@link #client(HttpClient)}. Separate clients have separate connection pools and executors, so a slow or
+       * misbehaving resolver cannot hold up the connections and threads used for the others, and each resolver can be
+       * tuned with its own HTTP version, connect timeout and executor.</p>
+       *
+       * <p>Example of HTTP/2 clients with a 2 second connect timeout:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .clientPerResolver(resolver -> HttpClient.newBuilder()
+       *    .version(HttpClient.Version.HTTP_2)
+       *    .connectTimeout(Duration.ofSeconds(2))
+       *    .build())
+       *  .build()
+       * }</pre>
+       *
+       * @param factory creates the HTTP client of a resolver
+       * @return the Doh4jClientBuilder instance
+       * @see #clientPerResolver(Duration)
+       */
+      public Doh4jClientBuilder clientPerResolver(Function<Resolver, HttpClient> factory) {
+        this.clientFactory = Objects.requireNonNull(factory, "Client factory cannot be null");
+        return this;
+      }
+
+      /**
+       * Gives each resolver its own HTTP/2 client with the given connect timeout and a default executor of its own.
+       *
+       * @param connectTimeout the connect timeout of the HTTP clients
+       * @return the Doh4jClientBuilder instance
+       * @see #clientPerResolver(Function)
+       */
+      public Doh4jClientBuilder clientPerResolver(Duration connectTimeout) {
+        Objects.requireNonNull(connectTimeout, "Connect timeout cannot be null");
+
+        return clientPerResolver(resolver -> newClient()
+            .connectTimeout(connectTimeout)
+            .build());
+      }
+
+      /**
+       * Returns a builder of HTTP/2 clients running on the executor of this builder, if any.
+       */
+      private HttpClient.Builder newClient() {
+        HttpClient.Builder client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2);
+
+        if (executor != null) {
+          client.executor(executor);
+        }
+
+        return client;
+      }
+
+      /**
+       * <p>Sets the executor of the client. It runs the HTTP exchanges of the default HTTP clients, including those
+       * created by {@link #clientPerResolver(Duration)}, as well as the dependent stages of futures returned by
+       * asynchronous lookups and the timers of hedged lookups and stale results. HTTP clients set by
+       * {@link #client(HttpClient)} or created by a factory keep their own executor.</p>
+       *
+       * <p>By default the shared HTTP client runs on its own executor, and dependent stages run on the thread that
+       * completed the lookup.</p>
+       *
+       * @param executor the executor, or null to use the defaults
+       * @return the Doh4jClientBuilder instance
+       * @see #virtualThreads()
+       */
+      public Doh4jClientBuilder executor(Executor executor) {
+        this.executor = executor;
+        return this;
+      }
+
+      /**
+       * <p>Runs the client on virtual threads, with an executor starting a new virtual thread for each task. Together
+       * with callers on virtual threads, synchronous lookups then block no platform threads while they wait, so
+       * hundreds of thousands of them can be in flight at once.</p>
+       *
+       * <p>Example of synchronous lookups from virtual threads:</p>
+       * <pre>{@code
+       * Doh4jClient client = Do4J.builder()
+       *  .virtualThreads()
+       *  .build();
+       *
+       * try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+       *   names.forEach(name -> callers.submit(() -> client.lookup(name, Type.A)));
+       * }
+       * }</pre>
+       *
+       * @return the Doh4jClientBuilder instance
+       * @throws UnsupportedOperationException if running on Java 20 or earlier
+       * @see #executor(Executor)
+       */
+      public Doh4jClientBuilder virtualThreads() {
+        if (!VirtualThreads.isSupported()) {
+          throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+
+        return executor(VirtualThreads.newExecutor());
+      }
+
+      /**
+       * <p>Sets the client subnet passed to the resolvers with every lookup that does not specify its own, in the
+       * "edns_client_subnet" parameter of the JSON API or the EDNS Client Subnet option (RFC 7871) of wire-format
+       * queries. Resolvers supporting it answer as if the lookups came from that subnet rather than from the egress
+       * address of the client, so CDNs return edges close to the workload behind a central gateway.</p>
+       *
+       * <p>Cached results are kept apart by subnet, except results the resolver marks as independent of the subnet with
+       * a scope prefix length of 0.</p>
+       *
+       * <p>Example of lookups on behalf of a /24 network:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .clientSubnet(ClientSubnet.of("198.51.100.0/24"))
+       *  .build();
+       * }</pre>
+       *
+       * @param subnet the client subnet, or null to pass none
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClient#lookup(String, int, ClientSubnet)
+       */
+      public Doh4jClientBuilder clientSubnet(ClientSubnet subnet) {
+        this.clientSubnet = subnet;
+        return this;
+      }
+
+      /**
+       * <p>Sets a listener receiving an event for every completed request and lookup, to export metrics to a metrics
+       * system. Snapshots of the metrics are available from {@link Doh4jClient#getMetrics()} regardless.</p>
+       *
+       * <p>Example of counting failed requests by cause:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .metricsListener(new MetricsListener() {
+       *    public void onRequest(Resolver resolver, long latencyNanos, ErrorCause cause) {
+       *      if (cause != null) {
+       *        registry.counter("doh4j.errors", "cause", cause.name()).increment();
+       *      }
+       *    }
+       *  })
+       *  .build()
+       * }</pre>
+       *
+       * @param listener the listener, called on the thread completing the request
+       * @return the Doh4jClientBuilder instance
+       */
+      public Doh4jClientBuilder metricsListener(MetricsListener listener) {
+        this.listener = listener;
+        return this;
+      }
+
+      /**
+       * <p>Opens a connection to each resolver when the client is built, so the first lookups do not pay for TCP, TLS
+       * and ALPN negotiation, and keeps the connections warm by requesting each resolver again at the given interval.
+       * The interval should be shorter than the idle timeout of the connections, which for HTTP/2 is set by the
+       * {@code jdk.httpclient.keepalive.timeout.h2} system property of the JDK.</p>
+       *
+       * <p>Connections are warmed by a query for the root name servers, whose response is discarded.</p>
+       *
+       * <p>Example of keeping connections warm every 20 seconds:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .prewarm(Duration.ofSeconds(20))
+       *  .build()
+       * }</pre>
+       *
+       * @param interval the interval between requests keeping the connections warm
+       * @return the Doh4jClientBuilder instance
+       */
+      public Doh4jClientBuilder prewarm(Duration interval) {
+        Objects.requireNonNull(interval, "Prewarm interval cannot be null");
+
+        if (interval.isNegative() || interval.isZero()) {
+          throw new IllegalArgumentException("Prewarm interval must be positive");
+        }
+
+        this.prewarmInterval = interval;
+        return this;
+      }
+
+      /**
+       * Adds a resolver to the Doh4jClientBuilder.
+       *
+       * @param url    The URL of the resolver, e.g. "https://dns.google/resolve"
+       * @param method The HTTP method to use when requesting resolver, "Method.GET" for JSON API resolvers
+       * @return The Doh4jClientBuilder instance.
+       * @throws IllegalArgumentException if the method is not "Method.GET", the only method the JSON API defines
+       * @see Method
+       */
+      public Doh4jClientBuilder resolver(String url, Method method) {
+        resolvers.add(new Resolver(url, method));
+        return this;
+      }
+
+      /**
+       * Adds a resolver to the Doh4jClientBuilder.
+       *
+       * @param url    The URL of the resolver, e.g. "https://cloudflare-dns.com/dns-query"
+       * @param method The HTTP method to use when requesting resolver, e.g. "Method.GET"
+       * @param format The message format the resolver speaks, e.g. "Format.WIRE"
+       * @return The Doh4jClientBuilder instance.
+       * @throws IllegalArgumentException if the format is "Format.JSON" and the method is not "Method.GET"
+       * @see Method
+       * @see Format
+       */
+      public Doh4jClientBuilder resolver(String url, Method method, Format format) {
+        resolvers.add(new Resolver(url, method, format));
+        return this;
+      }
+
+      /**
+       * Adds a resolver to the Doh4jClientBuilder.
+       *
+       * @param url The URL of the resolver, e.g. "https://dns.google/resolve"
+       * @return The Doh4jClientBuilder instance.
+       * @see Method
+       */
+      public Doh4jClientBuilder resolver(String url) {
+        resolvers.add(new Resolver(url));
+        return this;
+      }
+
+      /**
+       * <p>Enables an in-memory response cache holding at most the given number of results. Each result is cached
+       * until the minimum TTL of its answers elapses, and cache hits are returned without a network round trip.</p>
+       *
+       * <p>NXDOMAIN and NODATA results are cached as well, for the negative TTL derived from the SOA record of their
+       * authority section (RFC 2308), in a separate space holding a tenth of the given number of results unless set by
+       * {@link #negativeCache(int)}.</p>
+       *
+       * <p>Cached {@link Result} instances are shared between callers and must not be modified.</p>
+       *
+       * @param maximumSize the maximum number of cached results, or 0 to disable caching
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClient#getCacheStats()
+       */
+      public Doh4jClientBuilder cache(int maximumSize) {
+        if (maximumSize < 0) {
+          throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+
+        this.cacheSize = maximumSize;
+        return this;
+      }
+
+      /**
+       * <p>Sets the maximum number of NXDOMAIN and NODATA results held by the response cache. Negative results are
+       * kept apart from positive ones, so lookups of nonexistent names cannot evict positive results.</p>
+       *
+       * <p>Example of caching up to 1000 negative results besides 10000 positive ones:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .cache(10_000)
+       *  .negativeCache(1_000)
+       *  .build()
+       * }</pre>
+       *
+       * @param maximumSize the maximum number of cached negative results, or 0 to disable negative caching
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClientBuilder#cache(int)
+       * @see <a href="https://www.rfc-editor.org/rfc/rfc2308">RFC 2308: Negative Caching of DNS Queries</a>
+       */
+      public Doh4jClientBuilder negativeCache(int maximumSize) {
+        if (maximumSize < 0) {
+          throw new IllegalArgumentException("Negative cache size cannot be negative");
+        }
+
+        this.negativeCacheSize = maximumSize;
+        return this;
+      }
+
+      /**
+       * <p>Persists the response cache to a file, so a restarted client starts with the results of its predecessor
+       * instead of resolving every name again. The cache is written to the file at the given interval and whenever
+       * {@link Doh4jClient#snapshot()} is called. Periodic snapshots are written on the executor of the client, or on a
+       * dedicated daemon thread if none is set.</p>
+       *
+       * <p>An existing file is memory-mapped when the client is built and read lazily: a query missing from the cache
+       * reads only its own record from the file, which is added to the cache with its original expiry time. Expired
+       * records are discarded.</p>
+       *
+       * <p>Example of persisting the cache every minute:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .cache(10_000)
+       *  .snapshot(Path.of("/var/cache/doh4j.bin"), Duration.ofMinutes(1))
+       *  .build()
+       * }</pre>
+       *
+       * @param file     the snapshot file
+       * @param interval the interval between snapshots
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClientBuilder#cache(int)
+       */
+      public Doh4jClientBuilder snapshot(Path file, Duration interval) {
+        Objects.requireNonNull(file, "Snapshot file cannot be null");
+        Objects.requireNonNull(interval, "Snapshot interval cannot be null");
+
+        if (interval.isNegative() || interval.isZero()) {
+          throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+
+        this.snapshotFile = file;
+        this.snapshotInterval = interval;
+        return this;
+      }
+
+      /**
+       * <p>Enables refresh-ahead for the response cache. A cached result hit at least the given number of times is
+       * looked up again in the background once the given fraction of its TTL has elapsed, so popular names are
+       * replaced in the cache before they expire and callers never wait for them.</p>
+       *
+       * <p>Example of refreshing results hit at least 3 times, after 80% of their TTL:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .cache(10_000)
+       *  .refreshAhead(0.8, 3)
+       *  .build()
+       * }</pre>
+       *
+       * @param ttlFraction the fraction of the TTL after which a popular result is refreshed, greater than 0 and less
+       *                    than 1
+       * @param minimumHits the number of cache hits that makes a result popular
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClientBuilder#cache(int)
+       */
+      public Doh4jClientBuilder refreshAhead(double ttlFraction, int minimumHits) {
+        if (!(ttlFraction > 0 && ttlFraction < 1)) {
+          throw new IllegalArgumentException("TTL fraction must be greater than 0 and less than 1");
+        }
+
+        if (minimumHits < 1) {
+          throw new IllegalArgumentException("Minimum hits must be positive");
+        }
+
+        this.refreshAheadFraction = ttlFraction;
+        this.refreshAheadHits = minimumHits;
+        return this;
+      }
+
+      /**
+       * <p>Enables serving stale results (RFC 8767) from the response cache. Expired results are kept for the stale
+       * window, and if a lookup for an expired result fails with all resolvers or does not complete within the client
+       * timeout, the expired result is returned instead, marked with {@link Result#isStale()} and with a TTL of at most
+       * 30 seconds. The lookup continues in the background and refreshes the cache if it succeeds.</p>
+       *
+       * <p>After a failed lookup, stale results are returned without contacting the resolvers for 30 seconds, before
+       * the next lookup tries the resolvers again.</p>
+       *
+       * <p>Example of serving results up to a day past their expiry if the resolvers do not answer within 2 seconds:
+       * </p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .cache(10_000)
+       *  .serveStale(Duration.ofDays(1), Duration.ofSeconds(2))
+       *  .build()
+       * }</pre>
+       *
+       * @param staleWindow   the time past their expiry to keep results for serving them stale
+       * @param clientTimeout the time to wait for a lookup before answering with a stale result
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClientBuilder#cache(int)
+       * @see <a href="https://www.rfc-editor.org/rfc/rfc8767">RFC 8767: Serving Stale Data to Improve DNS
+       * Resiliency</a>
+       */
+      public Doh4jClientBuilder serveStale(Duration staleWindow, Duration clientTimeout) {
+        Objects.requireNonNull(staleWindow, "Stale window cannot be null");
+        Objects.requireNonNull(clientTimeout, "Client timeout cannot be null");
+
+        if (staleWindow.isNegative() || clientTimeout.isNegative()) {
+          throw new IllegalArgumentException("Stale window and client timeout cannot be negative");
+        }
+
+        this.staleWindow = staleWindow;
+        this.staleTimeout = clientTimeout;
+        return this;
+      }
+
+      /**
+       * <p>Sets the default timeout of lookups, used by the lookup methods without a timeout parameter. The timeout is
+       * a deadline shared by all resolvers of a lookup: once it elapses, the current requests time out, no further
+       * resolvers are requested and the lookup fails with a {@link Do4jLookupException}.</p>
+       *
+       * <p>By default lookups do not time out, and a resolver that never responds holds up a lookup until the
+       * operating system gives up the connection.</p>
+       *
+       * <p>Example of bounding lookups to 2 seconds, with at most 500 milliseconds per resolver:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .timeout(Duration.ofSeconds(2))
+       *  .attemptTimeout(Duration.ofMillis(500))
+       *  .build()
+       * }</pre>
+       *
+       * @param timeout the default timeout of lookups, or null for no timeout
+       * @return the Doh4jClientBuilder instance
+       * @see Doh4jClient#lookup(String, int, Duration)
+       * @see Doh4jClient#lookupAsync(String, int, Duration)
+       */
+      public Doh4jClientBuilder timeout(Duration timeout) {
+        requirePositive(timeout, "Timeout must be positive");
+
+        this.timeout = timeout;
+        return this;
+      }
+
+      /**
+       * <p>Sets the timeout of a single request to a resolver, after which the lookup continues with the next resolver.
+       * The timeout covers connecting and receiving the response headers, and is shortened to the time left until the
+       * deadline of the lookup.</p>
+       *
+       * @param attemptTimeout the timeout of a single request, or null for no timeout besides the lookup deadline
+       * @return the Doh4jClientBuilder instance
+       * @see #timeout(Duration)
+       */
+      public Doh4jClientBuilder attemptTimeout(Duration attemptTimeout) {
+        requirePositive(attemptTimeout, "Attempt timeout must be positive");
+
+        this.attemptTimeout = attemptTimeout;
+        return this;
+      }
+
+      private static void requirePositive(Duration duration, String message) {
+        if (duration != null && (duration.isNegative() || duration.isZero())) {
+          throw new IllegalArgumentException(message);
+        }
+      }
+
+      /**
+       * <p>Sets the strategy used to distribute a lookup across the resolvers, by default
+       * {@link Strategy#SEQUENTIAL}.</p>
+       *
+       * <p>Example of a hedged lookup, requesting the next resolver if no answer arrives within 50 milliseconds:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .strategy(Strategy.HEDGED)
+       *  .hedgeDelay(Duration.ofMillis(50))
+       *  .build()
+       *  .lookup("example.com", Type.A)
+       * }</pre>
+       *
+       * @param strategy the strategy to use
+       * @return the Doh4jClientBuilder instance
+       * @see Strategy
+       */
+      public Doh4jClientBuilder strategy(Strategy strategy) {
+        this.strategy = Objects.requireNonNull(strategy, "Strategy cannot be null");
+        return this;
+      }
+
+      /**
+       * Sets the delay after which a {@link Strategy#HEDGED} lookup additionally requests the next resolver, by
+       * default 100 milliseconds.
+       *
+       * @param hedgeDelay the delay to wait for an answer before requesting the next resolver
+       * @return the Doh4jClientBuilder instance
+       * @see Strategy#HEDGED
+       */
+      public Doh4jClientBuilder hedgeDelay(Duration hedgeDelay) {
+        Objects.requireNonNull(hedgeDelay, "Hedge delay cannot be null");
+
+        if (hedgeDelay.isNegative()) {
+          throw new IllegalArgumentException("Hedge delay cannot be negative");
+        }
+
+        this.hedgeDelay = hedgeDelay;
+        return this;
+      }
+
+      /**
+       * <p>Makes a {@link Strategy#HEDGED} lookup request the next resolver once the current one has taken longer than
+       * the given percentile of its own observed latency, rather than after a fixed delay. A resolver that usually
+       * answers in 10 milliseconds is then hedged after little more than that, while a slower one is given the time
+       * it usually needs.</p>
+       *
+       * <p>Until a resolver has completed 20 requests, and for clients without this setting, the hedge delay is used
+       * instead.</p>
+       *
+       * <p>Example of hedging requests slower than 95% of the requests to the same resolver:</p>
+       * <pre>{@code
+       * Do4J.builder()
+       *  .strategy(Strategy.HEDGED)
+       *  .hedgePercentile(95)
+       *  .build();
+       * }</pre>
+       *
+       * @param percentile the percentile of the latency, greater than 0 and less than 100
+       * @return the Doh4jClientBuilder instance
+       * @throws IllegalArgumentException if the percentile is out of range
+       * @see #hedgeDelay(Duration)
+       * @see Doh4jClient#getMetrics()
+       */
+      public Doh4jClientBuilder hedgePercentile(double percentile) {
+        if (!(percentile > 0 && percentile < 100)) {
+          throw new IllegalArgumentException("Hedge percentile must be greater than 0 and less than 100");
+        }
+
+        this.hedgePercentile = percentile;
+        return this;
+      }
+
+      /**
+       * <p>Enables a circuit breaker for each resolver. After the given number of consecutive failures, the resolver
+       * is skipped for the cool-down period, after which a single lookup per cool-down period is let through to probe
+       * it. The circuit closes again as soon as the resolver answers successfully.</p>
+       *
+       * <p>If the circuits of all resolvers are open, lookups are sent to all resolvers in their configured order.</p>
+       *
+       * @param failureThreshold the number of consecutive failures opening the circuit, or 0 to disable the breaker
+       * @param coolDown         the time to skip a resolver after its circuit opens
+       * @return the Doh4jClientBuilder instance
+       */
+      public Doh4jClientBuilder circuitBreaker(int failureThreshold, Duration coolDown) {
+        Objects.requireNonNull(coolDown, "Cool-down cannot be null");
+
+        if (failureThreshold < 0) {
+          throw new IllegalArgumentException("Failure threshold cannot be negative");
+        }
+
+        if (coolDown.isNegative()) {
+          throw new IllegalArgumentException("Cool-down cannot be negative");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.coolDown = coolDown;
+        return this;
+      }
+
+      /**
+       * Enables adaptive ordering of resolvers. Each resolver tracks a moving average of its latency and error rate,
+       * and every lookup requests the resolvers in the order of their expected time to a successful answer instead of
+       * their configured order. Resolvers that have not answered yet are tried first.
+       *
+       * @param adaptiveOrdering whether to order resolvers by their observed health
+       * @return the Doh4jClientBuilder instance
+       */
+      public Doh4jClientBuilder adaptiveOrdering(boolean adaptiveOrdering) {
+        this.adaptiveOrdering = adaptiveOrdering;
         return this;
       }
 
@@ -310,10 +2221,11 @@ public class Doh4j {
        * Builds and returns a new instance of Doh4jClient.
        *
        * @return the newly built Doh4jClient instance
+       * @throws IllegalArgumentException if the URL of a resolver is not a valid URI
        * @see Doh4jClient#lookup(String, int)
        */
       public Doh4jClient build() {
-        return new Doh4jClient(client, resolvers);
+        return new Doh4jClient(this);
       }
     }
   }
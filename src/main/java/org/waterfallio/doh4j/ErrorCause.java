@@ -0,0 +1,76 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The cause of a failed request to a resolver, as counted by {@link ResolverMetrics}.
+ */
+public enum ErrorCause {
+  /**
+   * The connection to the resolver could not be established.
+   */
+  CONNECT,
+
+  /**
+   * The connection or the request timed out.
+   */
+  TIMEOUT,
+
+  /**
+   * Any other I/O error, such as a connection reset by the resolver.
+   */
+  IO,
+
+  /**
+   * The resolver responded with a status code other than 2xx.
+   */
+  HTTP_STATUS,
+
+  /**
+   * The response could not be decoded.
+   */
+  MALFORMED,
+
+  /**
+   * The thread waiting for the response was interrupted.
+   */
+  INTERRUPTED,
+
+  /**
+   * Any other failure.
+   */
+  OTHER;
+
+  /**
+   * Classifies a failure, looking through the wrappers added by futures and by {@link java.net.http.HttpClient#send}
+   * around failures of the body subscriber.
+   */
+  static ErrorCause of(Throwable e) {
+    while ((e instanceof CompletionException || e instanceof ExecutionException ||
+        e instanceof IOException && e.getCause() instanceof Do4jSerializeException) && e.getCause() != null) {
+      e = e.getCause();
+    }
+
+    if (e instanceof ConnectException) {
+      return CONNECT;
+    } else if (e instanceof HttpTimeoutException) {
+      return TIMEOUT;
+    } else if (e instanceof IOException) {
+      return e.getCause() instanceof ConnectException ? CONNECT : IO;
+    } else if (e instanceof ResultSubscriber.UnexpectedStatusException) {
+      return HTTP_STATUS;
+    } else if (e instanceof Do4jSerializeException) {
+      return MALFORMED;
+    } else if (e instanceof InterruptedException) {
+      return INTERRUPTED;
+    }
+
+    return OTHER;
+  }
+}
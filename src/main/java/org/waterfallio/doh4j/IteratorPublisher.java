@@ -0,0 +1,86 @@
+package org.waterfallio.doh4j;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The IteratorPublisher class publishes the elements of an iterator on demand, on the thread that requests them. Each
+ * subscriber gets a new iterator, and elements are only produced when requested.
+ */
+class IteratorPublisher<T> implements Flow.Publisher<T> {
+  private final Supplier<Iterator<T>> iterators;
+
+  IteratorPublisher(Supplier<Iterator<T>> iterators) {
+    this.iterators = iterators;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    Objects.requireNonNull(subscriber, "Subscriber cannot be null");
+    subscriber.onSubscribe(new IteratorSubscription(subscriber, iterators.get()));
+  }
+
+  private class IteratorSubscription implements Flow.Subscription {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final Iterator<T> iterator;
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+
+    private volatile boolean cancelled;
+    private volatile boolean invalid;
+
+    private IteratorSubscription(Flow.Subscriber<? super T> subscriber, Iterator<T> iterator) {
+      this.subscriber = subscriber;
+      this.iterator = iterator;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalid = true;
+      } else {
+        demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+      }
+
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Publishes elements while there is demand. Requests made by the subscriber from within onNext are picked up by
+     * the running loop instead of recursing.
+     */
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+
+      int missed = 1;
+
+      do {
+        while (!cancelled && !invalid && demand.get() > 0 && iterator.hasNext()) {
+          demand.decrementAndGet();
+          subscriber.onNext(iterator.next());
+        }
+
+        if (!cancelled && invalid) {
+          cancelled = true;
+          subscriber.onError(new IllegalArgumentException("Non-positive request"));
+        } else if (!cancelled && !iterator.hasNext()) {
+          cancelled = true;
+          subscriber.onComplete();
+        }
+
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.waterfallio.doh4j;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>The LatencyHistogram class records latencies into log-linear buckets without locks or allocation: each power of
+ * two is split into {@value #SUB_BUCKETS} linear sub-buckets, so any recorded value is reported within 12.5% of its
+ * true value, from nanoseconds to hours, in a fixed array of counters.</p>
+ *
+ * <p>Percentiles are computed from a copy of the counters, which may be slightly inconsistent with concurrent
+ * recording.</p>
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+
+  void record(long value) {
+    counts.incrementAndGet(index(Math.max(0, value)));
+    count.increment();
+  }
+
+  /**
+   * Returns the number of recorded values.
+   */
+  long count() {
+    return count.sum();
+  }
+
+  /**
+   * Returns the values at the given percentiles, each the highest value of the bucket holding the percentile, or 0 if
+   * nothing was recorded.
+   *
+   * @param percentiles the percentiles in ascending order, each between 0 and 100
+   */
+  long[] percentiles(double... percentiles) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    long[] values = new long[percentiles.length];
+
+    if (total == 0) {
+      return values;
+    }
+
+    long seen = 0;
+    int bucket = 0;
+
+    for (int p = 0; p < percentiles.length; p++) {
+      long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+
+      while (seen + snapshot[bucket] < rank && bucket < BUCKETS - 1) {
+        seen += snapshot[bucket++];
+      }
+
+      values[p] = highestValue(bucket);
+    }
+
+    return values;
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+    return lowest + (1L << shift) - 1;
+  }
+}
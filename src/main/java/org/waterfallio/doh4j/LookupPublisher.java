@@ -0,0 +1,236 @@
+package org.waterfallio.doh4j;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <p>The LookupPublisher class looks up the queries of an upstream publisher and publishes their results, with
+ * backpressure in both directions.</p>
+ *
+ * <p>Each subscription holds a fixed number of slots. A slot is taken when a query is requested from upstream and
+ * released when its result is emitted downstream, so the number of queries requested, lookups in flight and results
+ * waiting for demand together never exceed the parallelism, however fast upstream produces or however slowly
+ * downstream consumes.</p>
+ *
+ * <p>Signals to the subscriber are serialized by a single drain loop, which any thread may enter: the thread that
+ * completes a lookup, the thread that requests more results or the thread that publishes a query.</p>
+ */
+class LookupPublisher<Q, R> implements Flow.Publisher<R> {
+  private final Flow.Publisher<Q> queries;
+  private final Function<Q, CompletableFuture<R>> lookup;
+  private final int parallelism;
+  private final Ordering ordering;
+
+  LookupPublisher(Flow.Publisher<Q> queries, Function<Q, CompletableFuture<R>> lookup, int parallelism,
+                  Ordering ordering) {
+    this.queries = queries;
+    this.lookup = lookup;
+    this.parallelism = parallelism;
+    this.ordering = ordering;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super R> subscriber) {
+    Objects.requireNonNull(subscriber, "Subscriber cannot be null");
+    queries.subscribe(new LookupSubscription(subscriber));
+  }
+
+  /**
+   * The subscription of a single subscriber, which is also the subscriber of its own upstream subscription.
+   */
+  private class LookupSubscription implements Flow.Subscription, Flow.Subscriber<Q> {
+    private final Flow.Subscriber<? super R> subscriber;
+
+    /**
+     * Lookups whose results have not been emitted: in query order for {@link Ordering#ORDERED}, otherwise completed
+     * lookups in completion order.
+     */
+    private final Queue<CompletableFuture<R>> lookups = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+
+    /**
+     * The number of queries received from upstream whose results have not been emitted.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    private Flow.Subscription upstream;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private volatile Throwable invalid;
+    private boolean terminated;
+
+    private LookupSubscription(Flow.Subscriber<? super R> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      if (upstream != null) {
+        subscription.cancel();
+        return;
+      }
+
+      upstream = subscription;
+      subscriber.onSubscribe(this);
+
+      if (!cancelled) {
+        subscription.request(parallelism);
+      }
+    }
+
+    @Override
+    public void onNext(Q query) {
+      if (cancelled || done) {
+        return;
+      }
+
+      active.incrementAndGet();
+
+      CompletableFuture<R> result;
+
+      try {
+        result = lookup.apply(query);
+      } catch (RuntimeException e) {
+        result = CompletableFuture.failedFuture(e);
+      }
+
+      if (ordering == Ordering.ORDERED) {
+        lookups.add(result);
+        result.whenComplete((r, e) -> drain());
+      } else {
+        CompletableFuture<R> completed = result;
+
+        result.whenComplete((r, e) -> {
+          lookups.add(completed);
+          drain();
+        });
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void onComplete() {
+      done = true;
+      drain();
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalid = new IllegalArgumentException("Non-positive request " + n);
+        upstream.cancel();
+        drain();
+        return;
+      }
+
+      demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      if (!cancelled) {
+        cancelled = true;
+        upstream.cancel();
+        drain();
+      }
+    }
+
+    /**
+     * Emits the results of completed lookups while there is demand, requests a new query from upstream for each of
+     * them, and terminates the subscriber once upstream is done and every result has been emitted.
+     */
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+
+      int missed = 1;
+
+      do {
+        if (terminated) {
+          lookups.clear();
+        } else if (cancelled) {
+          terminated = true;
+          lookups.clear();
+        } else if (invalid != null) {
+          terminated = true;
+          lookups.clear();
+          subscriber.onError(invalid);
+        } else {
+          emit();
+        }
+
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void emit() {
+      long emitted = 0;
+      CompletableFuture<R> head;
+
+      while ((head = lookups.peek()) != null && head.isDone()) {
+        if (head.isCompletedExceptionally()) {
+          terminated = true;
+          lookups.clear();
+          upstream.cancel();
+          subscriber.onError(cause(head));
+          return;
+        }
+
+        if (demand.get() == 0) {
+          break;
+        }
+
+        lookups.poll();
+        demand.decrementAndGet();
+        active.decrementAndGet();
+        emitted++;
+        subscriber.onNext(head.join());
+
+        if (cancelled) {
+          return;
+        }
+      }
+
+      if (done && active.get() == 0) {
+        terminated = true;
+
+        if (error != null) {
+          subscriber.onError(error);
+        } else {
+          subscriber.onComplete();
+        }
+      } else if (emitted > 0 && !done) {
+        upstream.request(emitted);
+      }
+    }
+
+    private Throwable cause(CompletableFuture<R> lookup) {
+      try {
+        lookup.join();
+        return new IllegalStateException("Lookup did not fail");
+      } catch (CompletionException e) {
+        return e.getCause() != null ? e.getCause() : e;
+      } catch (RuntimeException e) {
+        return e;
+      }
+    }
+  }
+}
@@ -0,0 +1,483 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.IDN;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The MessageCodec class encodes DNS queries into and decodes DNS responses from the binary DNS message format
+ * used by the "application/dns-message" media type.</p>
+ *
+ * <p>Record data of decoded answers is rendered in the same presentation format as the JSON API, so results are
+ * interchangeable regardless of the format used by a resolver. Addresses are kept as raw bytes and only rendered as
+ * text when requested.</p>
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc8484">RFC 8484: DNS Queries over HTTPS (DoH)</a>
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc1035#section-4">RFC 1035: Messages</a>
+ */
+class MessageCodec {
+  static final String MEDIA_TYPE = "application/dns-message";
+
+  private static final int HEADER_LENGTH = 12;
+  private static final int MAX_NAME_LENGTH = 255;
+  private static final int MAX_LABEL_LENGTH = 63;
+  private static final int MAX_POINTERS = 64;
+
+  private static final int FLAG_RD = 0x0100;
+  private static final int CLASS_IN = 1;
+
+  /**
+   * The length of an OPT record without options: root name, type, UDP payload size, extended flags and data length.
+   */
+  private static final int OPT_LENGTH = 11;
+
+  /**
+   * The length of an EDNS Client Subnet option without address: code, length, family and prefix lengths.
+   */
+  private static final int ECS_LENGTH = 8;
+
+  private static final int OPTION_CLIENT_SUBNET = 8;
+  private static final int UDP_PAYLOAD_SIZE = 1232;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private MessageCodec() {
+  }
+
+  /**
+   * Encodes a recursive query for the given name and type with the given message ID.
+   *
+   * @param name the domain name, with or without the trailing dot; internationalized names are converted to ASCII
+   * @param type the type of DNS record to retrieve
+   * @param id   the message ID
+   * @return the encoded query, positioned at its start and backed by an array of exactly its length
+   * @throws Do4jSerializeException if the name is not a valid domain name
+   */
+  static ByteBuffer encodeQuery(String name, int type, int id) throws Do4jSerializeException {
+    return encodeQuery(name, type, id, null);
+  }
+
+  /**
+   * Encodes a recursive query like {@link #encodeQuery(String, int, int)}, with an OPT record carrying the EDNS Client
+   * Subnet option of RFC 7871 if a subnet is given.
+   *
+   * @param subnet the client subnet, or null to send no OPT record
+   */
+  static ByteBuffer encodeQuery(String name, int type, int id, ClientSubnet subnet) throws Do4jSerializeException {
+    String ascii = toAscii(name);
+    int length = ascii.endsWith(".") ? ascii.length() - 1 : ascii.length();
+    byte[] prefix = subnet != null ? subnet.getPrefixBytes() : null;
+    int opt = prefix != null ? OPT_LENGTH + ECS_LENGTH + prefix.length : 0;
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (length == 0 ? 1 : length + 2) + 4 + opt);
+
+    buffer.putShort((short) id)
+        .putShort((short) FLAG_RD)
+        .putShort((short) 1)
+        .putShort((short) 0)
+        .putShort((short) 0)
+        .putShort((short) (prefix != null ? 1 : 0));
+
+    writeName(buffer, ascii);
+
+    buffer.putShort((short) type)
+        .putShort((short) CLASS_IN);
+
+    if (prefix != null) {
+      buffer.put((byte) 0)
+          .putShort((short) Type.OPT)
+          .putShort((short) UDP_PAYLOAD_SIZE)
+          .putInt(0)
+          .putShort((short) (ECS_LENGTH + prefix.length))
+          .putShort((short) OPTION_CLIENT_SUBNET)
+          .putShort((short) (ECS_LENGTH - 4 + prefix.length))
+          .putShort((short) subnet.getFamily())
+          .put((byte) subnet.getSourcePrefix())
+          .put((byte) 0)
+          .put(prefix);
+    }
+
+    return buffer.flip();
+  }
+
+  /**
+   * Decodes a DNS response into a {@link Result}.
+   *
+   * @param buffer the response message, positioned at its start
+   * @return the decoded result
+   * @throws Do4jSerializeException if the message is malformed
+   */
+  static Result decode(ByteBuffer buffer) throws Do4jSerializeException {
+    try {
+      int start = buffer.position();
+      int flags = Short.toUnsignedInt(buffer.getShort(start + 2));
+      int questions = Short.toUnsignedInt(buffer.getShort(start + 4));
+      int answers = Short.toUnsignedInt(buffer.getShort(start + 6));
+      int authorities = Short.toUnsignedInt(buffer.getShort(start + 8));
+      int additionals = Short.toUnsignedInt(buffer.getShort(start + 10));
+
+      buffer.position(start + HEADER_LENGTH);
+
+      for (int i = 0; i < questions; i++) {
+        skipName(buffer);
+        buffer.position(buffer.position() + 4);
+      }
+
+      StringBuilder builder = new StringBuilder(64);
+      List<Answer> records = new ArrayList<>(answers);
+
+      for (int i = 0; i < answers; i++) {
+        records.add(readAnswer(buffer, start, builder));
+      }
+
+      List<Answer> authority = new ArrayList<>(authorities);
+
+      for (int i = 0; i < authorities; i++) {
+        authority.add(readAnswer(buffer, start, builder));
+      }
+
+      Result result = new Result();
+
+      result.setStatus(flags & 0xF);
+      result.setAnswer(records);
+      result.setAuthority(authority);
+
+      for (int i = 0; i < additionals && result.getEdnsClientSubnet() == null; i++) {
+        readAdditional(buffer, result);
+      }
+
+      return result;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | UnknownHostException e) {
+      throw new Do4jSerializeException("Malformed DNS message", e);
+    }
+  }
+
+  /**
+   * Reads an additional record, keeping only the EDNS Client Subnet option of an OPT record, which is rendered like the
+   * "edns_client_subnet" field of the JSON API: the address of the subnet followed by the scope prefix length.
+   */
+  private static void readAdditional(ByteBuffer buffer, Result result) throws UnknownHostException {
+    skipName(buffer);
+
+    int type = Short.toUnsignedInt(buffer.getShort());
+
+    buffer.position(buffer.position() + 6);
+
+    int length = Short.toUnsignedInt(buffer.getShort());
+    int end = buffer.position() + length;
+
+    while (type == Type.OPT && buffer.position() + 4 <= end) {
+      int code = Short.toUnsignedInt(buffer.getShort());
+      int optionEnd = buffer.position() + 2 + Short.toUnsignedInt(buffer.getShort());
+
+      if (code == OPTION_CLIENT_SUBNET && optionEnd <= end) {
+        int family = Short.toUnsignedInt(buffer.getShort());
+        buffer.get();
+        int scope = Byte.toUnsignedInt(buffer.get());
+        byte[] address = new byte[family == 1 ? 4 : 16];
+
+        buffer.get(address, 0, Math.min(address.length, optionEnd - buffer.position()));
+        result.setEdnsClientSubnet(InetAddress.getByAddress(address).getHostAddress() + "/" + scope);
+      }
+
+      buffer.position(optionEnd);
+    }
+
+    buffer.position(end);
+  }
+
+  private static Answer readAnswer(ByteBuffer buffer, int start, StringBuilder builder) {
+    builder.setLength(0);
+    readName(buffer, start, builder);
+
+    Answer answer = new Answer();
+
+    answer.setName(builder.toString());
+    answer.setType(Short.toUnsignedInt(buffer.getShort()));
+    buffer.getShort();
+    answer.setTTL((int) Math.min(Integer.toUnsignedLong(buffer.getInt()), Integer.MAX_VALUE));
+
+    int length = Short.toUnsignedInt(buffer.getShort());
+    int end = buffer.position() + length;
+
+    if (end > buffer.limit()) {
+      throw new BufferUnderflowException();
+    }
+
+    if ((answer.getType() == Type.A && length == 4) || (answer.getType() == Type.AAAA && length == 16)) {
+      byte[] address = new byte[length];
+      buffer.get(address);
+      answer.setAddressBytes(address);
+    } else {
+      builder.setLength(0);
+      readData(buffer, start, end, answer.getType(), builder);
+      answer.setData(builder.toString());
+    }
+
+    buffer.position(end);
+
+    return answer;
+  }
+
+  /**
+   * Renders record data other than addresses in presentation format, using the generic RFC 3597 notation for types
+   * without a dedicated format.
+   */
+  private static void readData(ByteBuffer buffer, int start, int end, int type, StringBuilder builder) {
+    int length = end - buffer.position();
+
+    switch (type) {
+      case Type.CNAME:
+      case Type.NS:
+      case Type.PTR:
+      case Type.DNAME:
+        readName(buffer, start, builder);
+        return;
+      case Type.MX:
+        builder.append(Short.toUnsignedInt(buffer.getShort())).append(' ');
+        readName(buffer, start, builder);
+        return;
+      case Type.SRV:
+        builder.append(Short.toUnsignedInt(buffer.getShort())).append(' ')
+            .append(Short.toUnsignedInt(buffer.getShort())).append(' ')
+            .append(Short.toUnsignedInt(buffer.getShort())).append(' ');
+        readName(buffer, start, builder);
+        return;
+      case Type.SOA:
+        readName(buffer, start, builder);
+        builder.append(' ');
+        readName(buffer, start, builder);
+        for (int i = 0; i < 5; i++) {
+          builder.append(' ').append(Integer.toUnsignedLong(buffer.getInt()));
+        }
+        return;
+      case Type.TXT:
+      case Type.SPF:
+        while (buffer.position() < end) {
+          if (builder.length() > 0) builder.append(' ');
+          appendCharacterString(buffer, builder);
+        }
+        return;
+      default:
+        break;
+    }
+
+    builder.append("\\# ").append(length);
+
+    if (length > 0) {
+      builder.append(' ');
+    }
+
+    for (int i = 0; i < length; i++) {
+      int b = Byte.toUnsignedInt(buffer.get());
+      builder.append(HEX[b >>> 4]).append(HEX[b & 0xF]);
+    }
+  }
+
+  /**
+   * Reads a possibly compressed domain name at the current position into the builder, leaving the buffer positioned
+   * after the name as it appears in the record. Labels are appended directly without intermediate strings.
+   */
+  private static void readName(ByteBuffer buffer, int start, StringBuilder builder) {
+    int position = buffer.position();
+    int resume = -1;
+    int pointers = 0;
+    int length = 0;
+    int begin = builder.length();
+
+    while (true) {
+      int label = Byte.toUnsignedInt(buffer.get(position));
+
+      if ((label & 0xC0) == 0xC0) {
+        int target = start + (((label & 0x3F) << 8) | Byte.toUnsignedInt(buffer.get(position + 1)));
+
+        if (++pointers > MAX_POINTERS || target >= position) {
+          throw new IllegalArgumentException("Invalid compression pointer");
+        }
+
+        if (resume < 0) {
+          resume = position + 2;
+        }
+
+        position = target;
+        continue;
+      }
+
+      if ((label & 0xC0) != 0) {
+        throw new IllegalArgumentException("Unsupported label type");
+      }
+
+      position++;
+
+      if (label == 0) {
+        break;
+      }
+
+      length += label + 1;
+
+      if (length > MAX_NAME_LENGTH) {
+        throw new IllegalArgumentException("Domain name too long");
+      }
+
+      for (int i = 0; i < label; i++) {
+        appendLabelByte(Byte.toUnsignedInt(buffer.get(position + i)), builder);
+      }
+
+      builder.append('.');
+      position += label;
+    }
+
+    if (builder.length() == begin) {
+      builder.append('.');
+    }
+
+    buffer.position(resume >= 0 ? resume : position);
+  }
+
+  private static void skipName(ByteBuffer buffer) {
+    while (true) {
+      int label = Byte.toUnsignedInt(buffer.get());
+
+      if ((label & 0xC0) == 0xC0) {
+        buffer.get();
+        return;
+      }
+
+      if (label == 0) {
+        return;
+      }
+
+      buffer.position(buffer.position() + label);
+    }
+  }
+
+  private static void appendLabelByte(int b, StringBuilder builder) {
+    if (b == '.' || b == '\\') {
+      builder.append('\\').append((char) b);
+    } else if (b < 0x21 || b > 0x7E) {
+      builder.append('\\')
+          .append((char) ('0' + b / 100))
+          .append((char) ('0' + b / 10 % 10))
+          .append((char) ('0' + b % 10));
+    } else {
+      builder.append((char) b);
+    }
+  }
+
+  private static void appendCharacterString(ByteBuffer buffer, StringBuilder builder) {
+    int length = Byte.toUnsignedInt(buffer.get());
+
+    builder.append('"');
+
+    for (int i = 0; i < length; i++) {
+      int b = Byte.toUnsignedInt(buffer.get());
+
+      if (b == '"' || b == '\\') {
+        builder.append('\\').append((char) b);
+      } else if (b < 0x20 || b > 0x7E) {
+        builder.append('\\')
+            .append((char) ('0' + b / 100))
+            .append((char) ('0' + b / 10 % 10))
+            .append((char) ('0' + b % 10));
+      } else {
+        builder.append((char) b);
+      }
+    }
+
+    builder.append('"');
+  }
+
+  private static void writeName(ByteBuffer buffer, String name) {
+    int length = name.length();
+    int labelStart = 0;
+
+    if (length > 0 && name.charAt(length - 1) == '.') {
+      length--;
+    }
+
+    if (length + 2 > MAX_NAME_LENGTH) {
+      throw new Do4jSerializeException("Domain name too long: " + name);
+    }
+
+    while (labelStart < length) {
+      int labelEnd = name.indexOf('.', labelStart);
+
+      if (labelEnd < 0 || labelEnd > length) {
+        labelEnd = length;
+      }
+
+      int labelLength = labelEnd - labelStart;
+
+      if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH) {
+        throw new Do4jSerializeException("Invalid label in domain name: " + name);
+      }
+
+      buffer.put((byte) labelLength);
+
+      for (int i = labelStart; i < labelEnd; i++) {
+        buffer.put((byte) name.charAt(i));
+      }
+
+      labelStart = labelEnd + 1;
+    }
+
+    buffer.put((byte) 0);
+  }
+
+  /**
+   * Checks that a name can be sent in a query: once converted to ASCII, it must fit the 255 octets of a name on the
+   * wire and consist of labels of 1 to 63 characters. JSON API resolvers reject such names as well, so checking them
+   * before any request is built keeps them from being counted as resolver failures.
+   *
+   * @throws Do4jSerializeException if the name is not a valid domain name
+   */
+  static void checkName(String name) throws Do4jSerializeException {
+    String ascii = toAscii(name);
+    int length = ascii.endsWith(".") ? ascii.length() - 1 : ascii.length();
+
+    if (length + 2 > MAX_NAME_LENGTH) {
+      throw new Do4jSerializeException("Domain name too long: " + name);
+    }
+
+    for (int labelStart = 0; labelStart < length; ) {
+      int labelEnd = ascii.indexOf('.', labelStart);
+
+      if (labelEnd < 0 || labelEnd > length) {
+        labelEnd = length;
+      }
+
+      if (labelEnd == labelStart || labelEnd - labelStart > MAX_LABEL_LENGTH) {
+        throw new Do4jSerializeException("Invalid label in domain name: " + name);
+      }
+
+      labelStart = labelEnd + 1;
+    }
+  }
+
+  /**
+   * Converts an internationalized domain name to ASCII, returning ASCII names as they are.
+   *
+   * @throws Do4jSerializeException if the name is not a valid internationalized domain name
+   */
+  static String toAscii(String name) {
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) > 0x7F) {
+        try {
+          return IDN.toASCII(name, IDN.ALLOW_UNASSIGNED);
+        } catch (IllegalArgumentException e) {
+          throw new Do4jSerializeException("Invalid domain name: " + name, e);
+        }
+      }
+    }
+
+    return name;
+  }
+}
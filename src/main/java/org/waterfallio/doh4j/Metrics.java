@@ -0,0 +1,79 @@
+package org.waterfallio.doh4j;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Metrics class is an immutable snapshot of the metrics of a {@link Doh4j.Doh4jClient}: per-resolver request
+ * metrics, the fallback depth of lookups, the requests in flight and the counters of the response cache.
+ *
+ * @see Doh4j.Doh4jClient#getMetrics()
+ */
+public class Metrics {
+  private final List<ResolverMetrics> resolvers;
+  private final long[] fallbackDepths;
+  private final long failedLookups;
+  private final CacheStats cache;
+
+  Metrics(List<ResolverMetrics> resolvers, long[] fallbackDepths, long failedLookups, CacheStats cache) {
+    this.resolvers = resolvers;
+    this.fallbackDepths = fallbackDepths;
+    this.failedLookups = failedLookups;
+    this.cache = cache;
+  }
+
+  /**
+   * @return the metrics of each resolver, in their configured order
+   */
+  public List<ResolverMetrics> getResolvers() {
+    return resolvers;
+  }
+
+  /**
+   * Returns the number of successful lookups by fallback depth: element 0 counts lookups answered by the first
+   * resolver requested, element 1 lookups answered after one resolver failed, and so on.
+   *
+   * @return a copy of the counters of successful lookups by fallback depth
+   */
+  public long[] getFallbackDepths() {
+    return fallbackDepths.clone();
+  }
+
+  /**
+   * @return the number of lookups answered by a resolver, excluding cache hits
+   */
+  public long getLookups() {
+    return Arrays.stream(fallbackDepths).sum();
+  }
+
+  /**
+   * @return the number of lookups that failed with all resolvers
+   */
+  public long getFailedLookups() {
+    return failedLookups;
+  }
+
+  /**
+   * @return the number of requests currently in flight to all resolvers
+   */
+  public long getInflight() {
+    return resolvers.stream().mapToLong(ResolverMetrics::getInflight).sum();
+  }
+
+  /**
+   * @return the counters of the response cache, all 0 if the client has no cache
+   */
+  public CacheStats getCache() {
+    return cache;
+  }
+
+  @Override
+  public String toString() {
+    return "Metrics{" +
+        "resolvers=" + resolvers +
+        ", fallbackDepths=" + Arrays.toString(fallbackDepths) +
+        ", failedLookups=" + failedLookups +
+        ", cache=" + cache +
+        '}';
+  }
+}
@@ -0,0 +1,32 @@
+package org.waterfallio.doh4j;
+
+/**
+ * <p>The MetricsListener interface receives an event for every request and lookup of a {@link Doh4j.Doh4jClient}, to
+ * export them to a metrics system such as Micrometer or OpenTelemetry without doh4j depending on it.</p>
+ *
+ * <p>Listeners are called on the thread completing the request, often an executor thread of the HTTP client, and
+ * must return quickly without blocking.</p>
+ *
+ * @see Doh4j.Doh4jClientBuilder#metricsListener(MetricsListener)
+ */
+public interface MetricsListener {
+  /**
+   * Called when a request to a resolver completes. Cancelled requests, i.e. the losers of a race, are not reported.
+   *
+   * @param resolver     the requested resolver
+   * @param latencyNanos the latency of the request in nanoseconds
+   * @param cause        the cause of the failure, or null if the request succeeded
+   */
+  default void onRequest(Resolver resolver, long latencyNanos, ErrorCause cause) {
+  }
+
+  /**
+   * Called when a lookup that was not answered from the cache completes.
+   *
+   * @param name          the looked up name
+   * @param type          the looked up type
+   * @param fallbackDepth the number of resolvers that failed before one answered, or -1 if all resolvers failed
+   */
+  default void onLookup(String name, int type, int fallbackDepth) {
+  }
+}
@@ -0,0 +1,19 @@
+package org.waterfallio.doh4j;
+
+/**
+ * The Ordering enum defines the order in which a streaming lookup emits its results.
+ *
+ * @see Doh4j.Doh4jClient#lookupAll(java.util.concurrent.Flow.Publisher, int, Ordering)
+ */
+public enum Ordering {
+  /**
+   * Emits results in the order of their queries. A slow lookup holds back the results of the lookups after it, which
+   * count against the maximum number of outstanding lookups until they are emitted.
+   */
+  ORDERED,
+
+  /**
+   * Emits results as soon as their lookups complete, regardless of the order of their queries.
+   */
+  COMPLETION
+}
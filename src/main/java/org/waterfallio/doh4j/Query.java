@@ -0,0 +1,149 @@
+package org.waterfallio.doh4j;
+
+import java.net.InetAddress;
+import java.util.Objects;
+
+/**
+ * The Query class represents a single DNS question, i.e. a domain name and the type of DNS record to retrieve.
+ */
+public class Query {
+  private final static String IN_ADDR_ARPA = "in-addr.arpa.";
+  private final static String IP6_ARPA = "ip6.arpa.";
+  private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final String name;
+  private final int type;
+  private final ClientSubnet subnet;
+  private final int hash;
+
+  /**
+   * @param name the domain name to lookup
+   * @param type the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+   */
+  public Query(String name, int type) {
+    this(name, type, null);
+  }
+
+  /**
+   * @param name   the domain name to lookup
+   * @param type   the type of DNS record to retrieve, see {@link org.waterfallio.doh4j.specification.Type}
+   * @param subnet the client subnet passed to resolvers, or null to pass none
+   */
+  public Query(String name, int type, ClientSubnet subnet) {
+    this.name = Objects.requireNonNull(name, "Name cannot be null");
+    this.type = type;
+    this.subnet = subnet;
+    this.hash = 31 * (31 * name.hashCode() + type) + Objects.hashCode(subnet);
+  }
+
+  /**
+   * <p>Creates the {@link org.waterfallio.doh4j.specification.Type#PTR} query of an address, with the reverse name of
+   * the address in in-addr.arpa for IPv4 or ip6.arpa for IPv6, as described in RFC 1035 and RFC 3596.</p>
+   *
+   * <p>Example of the reverse query of 192.0.2.1:</p>
+   * <pre>{@code
+   * Query query = Query.reverse(InetAddress.getByName("192.0.2.1")); // 1.2.0.192.in-addr.arpa.
+   * }</pre>
+   *
+   * @param address the address to lookup
+   * @return the reverse query of the address
+   */
+  public static Query reverse(InetAddress address) {
+    return new Query(reverseName(address.getAddress()), org.waterfallio.doh4j.specification.Type.PTR);
+  }
+
+  /**
+   * Builds the reverse name of a 4 byte IPv4 or 16 byte IPv6 address directly into a character array.
+   */
+  static String reverseName(byte[] address) {
+    if (address.length == 16) {
+      char[] name = new char[16 * 4 + IP6_ARPA.length()];
+      int position = 0;
+
+      for (int i = 15; i >= 0; i--) {
+        name[position++] = HEX[address[i] & 0xF];
+        name[position++] = '.';
+        name[position++] = HEX[(address[i] >> 4) & 0xF];
+        name[position++] = '.';
+      }
+
+      IP6_ARPA.getChars(0, IP6_ARPA.length(), name, position);
+
+      return new String(name);
+    }
+
+    if (address.length != 4) {
+      throw new IllegalArgumentException("Invalid address length " + address.length);
+    }
+
+    char[] name = new char[4 * 4 + IN_ADDR_ARPA.length()];
+    int position = 0;
+
+    for (int i = 3; i >= 0; i--) {
+      int octet = address[i] & 0xFF;
+
+      if (octet >= 100) {
+        name[position++] = (char) ('0' + octet / 100);
+      }
+
+      if (octet >= 10) {
+        name[position++] = (char) ('0' + octet / 10 % 10);
+      }
+
+      name[position++] = (char) ('0' + octet % 10);
+      name[position++] = '.';
+    }
+
+    IN_ADDR_ARPA.getChars(0, IN_ADDR_ARPA.length(), name, position);
+
+    return new String(name, 0, position + IN_ADDR_ARPA.length());
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  /**
+   * @return the client subnet passed to resolvers, or null if none is passed
+   */
+  public ClientSubnet getSubnet() {
+    return subnet;
+  }
+
+  /**
+   * Returns the query of the same name and type with the given client subnet.
+   */
+  Query withSubnet(ClientSubnet subnet) {
+    return new Query(name, type, subnet);
+  }
+
+  @Override
+  public String toString() {
+    return "Query{" +
+        "name='" + name + '\'' +
+        ", type=" + type +
+        (subnet == null ? "" : ", subnet=" + subnet) +
+        '}';
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    Query query = (Query) o;
+
+    return type == query.type &&
+        name.equals(query.name) &&
+        Objects.equals(subnet, query.subnet);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
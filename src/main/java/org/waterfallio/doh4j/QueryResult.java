@@ -0,0 +1,51 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.specification.Result;
+
+/**
+ * The QueryResult class holds the outcome of a single query of a streaming lookup: the query together with either the
+ * result of its lookup or the error that made it fail, so results published as their lookups complete can still be
+ * matched to their queries.
+ *
+ * @see Doh4j.Doh4jClient#lookupAll(java.util.concurrent.Flow.Publisher, int, Ordering)
+ */
+public class QueryResult {
+  private final Query query;
+  private final Result result;
+  private final Throwable error;
+
+  QueryResult(Query query, Result result, Throwable error) {
+    this.query = query;
+    this.result = result;
+    this.error = error;
+  }
+
+  /**
+   * @return the query that was looked up
+   */
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the result of the lookup, or null if the lookup failed
+   */
+  public Result getResult() {
+    return result;
+  }
+
+  /**
+   * @return the error that made the lookup fail, or null if it succeeded
+   */
+  public Throwable getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return "QueryResult{" +
+        "query=" + query +
+        (error == null ? ", result=" + result : ", error=" + error) +
+        '}';
+  }
+}
@@ -0,0 +1,159 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.Resolver.Format;
+import org.waterfallio.doh4j.Resolver.Method;
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * <p>The RequestTemplate class builds the HTTP requests of lookups to a single resolver. Everything that does not depend
+ * on the query, i.e. the method, the headers, the parsed URI of body-carrying requests and the fixed part of query
+ * URLs, is prepared once when the client is built. A request still copies the template builder, and requests carrying
+ * the query in the URL, i.e. all JSON API requests and wire-format {@link Method#GET} requests, still parse their URL
+ * into a {@link URI} each time, since {@link HttpRequest} accepts no other form of URL. Body-carrying requests reuse
+ * the parsed URI of the resolver.</p>
+ *
+ * <p>Names are lowercased and wire-format queries carry a message ID of 0, so the same question always results in the
+ * same request and can be served by HTTP caches. Internationalized names are converted to ASCII as described in
+ * RFC 3490, and JSON API names are percent-encoded, so names with special characters form valid URLs.</p>
+ *
+ * <p>Wire-format queries are sent as a "dns" URL parameter for {@link Method#GET}, or as the request body for other
+ * methods. JSON API queries are sent with {@link Method#GET}, the only method the JSON API defines.</p>
+ */
+class RequestTemplate {
+  private static final String JSON_MEDIA_TYPE = "application/dns-json";
+
+  private static final Base64.Encoder BASE64_URL = Base64.getUrlEncoder().withoutPadding();
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private static final int MAX_NAME_LENGTH = 255;
+  private static final String TYPE_PARAMETER = "&type=";
+  private static final String CLIENT_SUBNET_PARAMETER = "&edns_client_subnet=";
+
+  private final Format format;
+  private final Method method;
+
+  /**
+   * The part of the URL preceding the encoded query, for requests carrying the query in the URL.
+   */
+  private final String prefix;
+
+  /**
+   * The URI of requests carrying the query in the body.
+   */
+  private final URI uri;
+
+  /**
+   * The method and headers of all requests. It is only ever copied, never modified, after construction.
+   */
+  private final HttpRequest.Builder template;
+
+  /**
+   * @throws IllegalArgumentException if the URL of the resolver is not a valid URI
+   */
+  RequestTemplate(Resolver resolver) {
+    String url = resolver.getUrl();
+    char separator = url.indexOf('?') < 0 ? '?' : '&';
+
+    this.format = resolver.getFormat();
+    this.method = resolver.getMethod();
+    this.uri = URI.create(url);
+
+    if (format == Format.WIRE) {
+      this.prefix = url + separator + "dns=";
+      this.template = method == Method.GET ?
+          HttpRequest.newBuilder().GET().header("Accept", MessageCodec.MEDIA_TYPE) :
+          HttpRequest.newBuilder(uri)
+              .header("Content-Type", MessageCodec.MEDIA_TYPE)
+              .header("Accept", MessageCodec.MEDIA_TYPE);
+    } else {
+      this.prefix = url + separator + "name=";
+      this.template = HttpRequest.newBuilder().GET().header("Accept", JSON_MEDIA_TYPE);
+    }
+  }
+
+  /**
+   * Builds the request for a single attempt of a lookup, which times out after the given timeout if it is not null.
+   *
+   * @throws Do4jSerializeException if the name is not a valid domain name
+   */
+  HttpRequest request(String name, int type, Duration timeout) {
+    return request(name, type, null, timeout);
+  }
+
+  /**
+   * Builds the request for a single attempt of a lookup like {@link #request(String, int, Duration)}, passing the given
+   * client subnet in the "edns_client_subnet" parameter of the JSON API or the EDNS Client Subnet option of a
+   * wire-format query.
+   *
+   * @param subnet the client subnet, or null to pass none
+   * @throws Do4jSerializeException if the name is not a valid domain name
+   */
+  HttpRequest request(String name, int type, ClientSubnet subnet, Duration timeout) {
+    String ascii = MessageCodec.toAscii(name.toLowerCase(Locale.ROOT));
+    HttpRequest.Builder request = template.copy();
+
+    if (format == Format.WIRE) {
+      ByteBuffer message = MessageCodec.encodeQuery(ascii, type, 0, subnet);
+
+      if (method == Method.GET) {
+        request.uri(URI.create(prefix + BASE64_URL.encodeToString(message.array())));
+      } else {
+        request.method(method.name(), HttpRequest.BodyPublishers.ofByteArray(message.array()));
+      }
+    } else {
+      String url = jsonUrl(ascii, type);
+
+      request.uri(URI.create(subnet == null ? url : url + CLIENT_SUBNET_PARAMETER + subnet));
+    }
+
+    if (timeout != null) {
+      request.timeout(timeout);
+    }
+
+    return request.build();
+  }
+
+  /**
+   * Appends the percent-encoded name and the type to the prefix, escaping everything but the unreserved characters of
+   * RFC 3986.
+   */
+  private String jsonUrl(String name, int type) {
+    if (name.length() > MAX_NAME_LENGTH) {
+      throw new Do4jSerializeException("Invalid domain name: " + name);
+    }
+
+    char[] url = new char[prefix.length() + name.length() * 3 + TYPE_PARAMETER.length() + 11];
+    int position = prefix.length();
+
+    prefix.getChars(0, prefix.length(), url, 0);
+
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+          c == '-' || c == '.' || c == '_' || c == '~') {
+        url[position++] = c;
+      } else {
+        url[position++] = '%';
+        url[position++] = HEX[(c >> 4) & 0xF];
+        url[position++] = HEX[c & 0xF];
+      }
+    }
+
+    TYPE_PARAMETER.getChars(0, TYPE_PARAMETER.length(), url, position);
+    position += TYPE_PARAMETER.length();
+
+    String number = Integer.toString(type);
+
+    number.getChars(0, number.length(), url, position);
+
+    return new String(url, 0, position + number.length());
+  }
+}
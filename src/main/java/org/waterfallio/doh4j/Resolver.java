@@ -4,19 +4,44 @@ import java.util.Objects;
 
 /**
  * The Resolver class represents a DNS resolver for performing DNS over HTTPS (DoH) lookups. Includes URL of the
- * resolvers and the HTTP method to use in a request.
+ * resolvers, the HTTP method to use in a request and the message format the resolver speaks.
  */
 public class Resolver {
+  /**
+   * The HTTP method used to send wire-format queries: {@link #GET} sends the query as a "dns" URL parameter, which
+   * HTTP caches can serve, while {@link #POST} and {@link #PUT} send it as the request body. The JSON API defines
+   * only {@link #GET}, which is the default method.
+   */
   public enum Method {
     GET, POST, PUT
   }
 
-  public final static Resolver GOOGLE = new Resolver("https://dns.google/resolve", Method.POST);
-  public final static Resolver CLOUDFLARE = new Resolver("https://cloudflare-dns.com/dns-query", Method.POST);
-  public final static Resolver QUAD9 = new Resolver("https://dns.quad9.net:5053/dns-query", Method.POST);
+  /**
+   * The message format of DNS queries and responses exchanged with a resolver.
+   */
+  public enum Format {
+    /**
+     * The JSON API ("application/dns-json"), with the query in the URL parameters.
+     *
+     * @see <a href="https://developers.google.com/speed/public-dns/docs/doh/json">JSON API for DNS over HTTPS</a>
+     */
+    JSON,
+
+    /**
+     * The binary DNS wire format ("application/dns-message") of RFC 8484, with the query sent as the request body.
+     *
+     * @see <a href="https://www.rfc-editor.org/rfc/rfc8484">RFC 8484: DNS Queries over HTTPS (DoH)</a>
+     */
+    WIRE
+  }
+
+  public final static Resolver GOOGLE = new Resolver("https://dns.google/resolve", Method.GET);
+  public final static Resolver CLOUDFLARE = new Resolver("https://cloudflare-dns.com/dns-query", Method.GET);
+  public final static Resolver QUAD9 = new Resolver("https://dns.quad9.net:5053/dns-query", Method.GET);
 
   private String url;
-  private Method method = Method.POST;
+  private Method method = Method.GET;
+  private Format format = Format.JSON;
 
   Resolver() {
   }
@@ -25,9 +50,26 @@ public class Resolver {
     this.url = Objects.requireNonNull(url, "Url cannot be null");
   }
 
+  /**
+   * @throws IllegalArgumentException if the method is not {@link Method#GET}, the only method the JSON API defines
+   */
   public Resolver(String url, Method method) {
+    this(url, method, null);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the format is {@link Format#JSON} and the method is not {@link Method#GET},
+   *                                  the only method the JSON API defines
+   */
+  public Resolver(String url, Method method, Format format) {
     this.url = Objects.requireNonNull(url, "Url cannot be null");
     this.method = Objects.nonNull(method) ? method : this.method;
+    this.format = Objects.nonNull(format) ? format : this.format;
+
+    if (this.format == Format.JSON && this.method != Method.GET) {
+      throw new IllegalArgumentException("JSON API resolvers only support Method.GET, use Format.WIRE to send "
+          + "queries with Method." + this.method);
+    }
   }
 
   public String getUrl() {
@@ -45,4 +87,12 @@ public class Resolver {
   void setMethod(Method method) {
     this.method = method;
   }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  void setFormat(Format format) {
+    this.format = format;
+  }
 }
@@ -0,0 +1,98 @@
+package org.waterfallio.doh4j;
+
+import java.util.Arrays;
+
+/**
+ * <p>The ResolverMetrics class is an immutable snapshot of the requests a {@link Doh4j.Doh4jClient} sent to a single
+ * {@link Resolver}: the number of requests, the number of requests in flight, errors by {@link ErrorCause} and latency
+ * percentiles.</p>
+ *
+ * <p>Latencies are those of successful requests, failed requests being counted by their error cause only, and are
+ * reported within 12.5% of their true value.</p>
+ *
+ * @see Metrics#getResolvers()
+ */
+public class ResolverMetrics {
+  private final String url;
+  private final long requests;
+  private final long inflight;
+  private final long[] errors;
+  private final long p50;
+  private final long p99;
+  private final long p999;
+  private final boolean open;
+
+  ResolverMetrics(String url, long requests, long inflight, long[] errors, long p50, long p99, long p999,
+                  boolean open) {
+    this.url = url;
+    this.requests = requests;
+    this.inflight = inflight;
+    this.errors = errors;
+    this.p50 = p50;
+    this.p99 = p99;
+    this.p999 = p999;
+    this.open = open;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public long getRequests() {
+    return requests;
+  }
+
+  public long getInflight() {
+    return inflight;
+  }
+
+  public long getErrors() {
+    return Arrays.stream(errors).sum();
+  }
+
+  public long getErrors(ErrorCause cause) {
+    return errors[cause.ordinal()];
+  }
+
+  /**
+   * @return the median latency in nanoseconds
+   */
+  public long getP50() {
+    return p50;
+  }
+
+  /**
+   * @return the 99th percentile latency in nanoseconds
+   */
+  public long getP99() {
+    return p99;
+  }
+
+  /**
+   * @return the 99.9th percentile latency in nanoseconds
+   */
+  public long getP999() {
+    return p999;
+  }
+
+  /**
+   * @return whether the circuit breaker of the resolver is open
+   */
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public String toString() {
+    return "ResolverMetrics{" +
+        "url='" + url + '\'' +
+        ", requests=" + requests +
+        ", inflight=" + inflight +
+        ", errors=" + getErrors() +
+        ", p50=" + p50 +
+        ", p99=" + p99 +
+        ", p999=" + p999 +
+        ", open=" + open +
+        '}';
+  }
+}
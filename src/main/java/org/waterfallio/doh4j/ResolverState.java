@@ -0,0 +1,206 @@
+package org.waterfallio.doh4j;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>The ResolverState class tracks the health of a single {@link Resolver} within a client: an exponentially
+ * weighted moving average (EWMA) of its latency and error rate, and a circuit breaker that stops requesting the
+ * resolver after consecutive failures.</p>
+ *
+ * <p>An open circuit rejects requests for the cool-down period. Afterwards one request per cool-down period is let
+ * through as a probe, and the circuit closes again as soon as a request succeeds.</p>
+ *
+ * <p>For {@link ResolverMetrics}, it also counts requests, in-flight requests and errors by cause, and records the
+ * latency of every completed request in a {@link LatencyHistogram}.</p>
+ *
+ * <p>The moving averages are updated without synchronization; concurrent updates may occasionally be lost, which is
+ * acceptable for the ordering heuristics they feed.</p>
+ */
+class ResolverState {
+  /**
+   * The weight of the most recent sample in the moving averages.
+   */
+  private static final double ALPHA = 0.2;
+
+  /**
+   * The error rate at which the score of a resolver stops growing, so that a failing resolver still has a finite
+   * score.
+   */
+  private static final double MAX_ERROR_RATE = 0.95;
+
+  /**
+   * The number of completed requests needed before a latency percentile is considered meaningful.
+   */
+  static final int MIN_PERCENTILE_SAMPLES = 20;
+
+  /**
+   * The time for which a computed latency percentile is reused, as computing one copies the histogram.
+   */
+  private static final long PERCENTILE_TTL_NANOS = 1_000_000_000L;
+
+  private final Resolver resolver;
+  private final HttpClient client;
+  private final RequestTemplate template;
+  private final int failureThreshold;
+  private final long coolDownNanos;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicLong openedAt = new AtomicLong();
+  private volatile boolean open;
+
+  private volatile double latency;
+  private volatile double errorRate;
+
+  private final LongAdder requests = new LongAdder();
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final LongAdder[] errors = new LongAdder[ErrorCause.values().length];
+  /**
+   * Latencies of successful requests only. Failures often fail fast, e.g. refused connections, and would pull the
+   * percentiles, and with them the hedge delay, below the time an answer actually takes.
+   */
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  private volatile long percentileLatency;
+  private volatile long percentileComputedAt;
+
+  /**
+   * @param resolver         the tracked resolver
+   * @param client           the HTTP client sending requests to the resolver
+   * @param failureThreshold the number of consecutive failures opening the circuit, or 0 to never open it
+   * @param coolDownNanos    the time an open circuit rejects requests before letting a probe through
+   * @throws IllegalArgumentException if the URL of the resolver is not a valid URI
+   */
+  ResolverState(Resolver resolver, HttpClient client, int failureThreshold, long coolDownNanos) {
+    this.resolver = resolver;
+    this.client = client;
+    this.template = new RequestTemplate(resolver);
+    this.failureThreshold = failureThreshold;
+    this.coolDownNanos = coolDownNanos;
+
+    for (int i = 0; i < errors.length; i++) {
+      errors[i] = new LongAdder();
+    }
+  }
+
+  Resolver getResolver() {
+    return resolver;
+  }
+
+  HttpClient getClient() {
+    return client;
+  }
+
+  RequestTemplate getTemplate() {
+    return template;
+  }
+
+  /**
+   * Returns whether a request may be sent to the resolver. While the circuit is open, only one request per cool-down
+   * period is allowed as a probe.
+   */
+  boolean allowRequest(long now) {
+    if (!open) {
+      return true;
+    }
+
+    long opened = openedAt.get();
+
+    return now - opened >= coolDownNanos && openedAt.compareAndSet(opened, now);
+  }
+
+  void onSend() {
+    requests.increment();
+    inflight.incrementAndGet();
+  }
+
+  /**
+   * Records a request that was cancelled, which does not count towards the health of the resolver.
+   */
+  void onCancel() {
+    inflight.decrementAndGet();
+  }
+
+  void onSuccess(long latencyNanos) {
+    inflight.decrementAndGet();
+    latencies.record(latencyNanos);
+
+    latency = latency == 0 ? latencyNanos : latency + ALPHA * (latencyNanos - latency);
+    errorRate = errorRate + ALPHA * (0 - errorRate);
+
+    consecutiveFailures.set(0);
+    open = false;
+  }
+
+  void onFailure(long now, long latencyNanos, ErrorCause cause) {
+    inflight.decrementAndGet();
+    errors[cause.ordinal()].increment();
+
+    latency = latency == 0 ? latencyNanos : latency + ALPHA * (latencyNanos - latency);
+    errorRate = errorRate + ALPHA * (1 - errorRate);
+
+    if (failureThreshold > 0 && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      openedAt.set(now);
+      open = true;
+    }
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Returns the expected time to a successful answer in nanoseconds, i.e. the average latency inflated by the error
+   * rate. Resolvers without samples score 0 so that each of them is tried at least once.
+   */
+  double score() {
+    return latency / (1 - Math.min(errorRate, MAX_ERROR_RATE));
+  }
+
+  double getLatency() {
+    return latency;
+  }
+
+  double getErrorRate() {
+    return errorRate;
+  }
+
+  /**
+   * Returns the latency at the given percentile in nanoseconds, or -1 if fewer than
+   * {@value #MIN_PERCENTILE_SAMPLES} requests have succeeded. A client asks for a single percentile, so the last
+   * computed value is reused for up to a second.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @param now        the current time in nanoseconds, as returned by {@link System#nanoTime()}
+   */
+  long latencyPercentile(double percentile, long now) {
+    if (latencies.count() < MIN_PERCENTILE_SAMPLES) {
+      return -1;
+    }
+
+    long latency = percentileLatency;
+
+    if (latency == 0 || now - percentileComputedAt >= PERCENTILE_TTL_NANOS) {
+      latency = latencies.percentiles(percentile)[0];
+      percentileComputedAt = now;
+      percentileLatency = latency;
+    }
+
+    return latency;
+  }
+
+  ResolverMetrics metrics() {
+    long[] errorCounts = new long[errors.length];
+
+    for (int i = 0; i < errors.length; i++) {
+      errorCounts[i] = errors[i].sum();
+    }
+
+    long[] percentiles = latencies.percentiles(50, 99, 99.9);
+
+    return new ResolverMetrics(resolver.getUrl(), requests.sum(), inflight.get(), errorCounts, percentiles[0],
+        percentiles[1], percentiles[2], open);
+  }
+}
@@ -0,0 +1,302 @@
+package org.waterfallio.doh4j;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import org.waterfallio.doh4j.Resolver.Format;
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * <p>The ResultSubscriber class decodes a response body into a {@link Result} as the body arrives, without buffering
+ * it into an intermediate byte array.</p>
+ *
+ * <p>JSON API responses are fed buffer by buffer into Jackson's non-blocking parser and the {@link Result} is built
+ * directly from the token stream, without reflection. Fields that are not mapped, such as "Question", "Additional" or
+ * "Comment", are skipped token by token without being materialized.</p>
+ *
+ * <p>Wire-format responses are small and must be complete to follow compression pointers, so they are collected into
+ * a single buffer and decoded by {@link MessageCodec} once complete.</p>
+ */
+class ResultSubscriber implements BodySubscriber<Result> {
+  private static final JsonFactory factory = new JsonFactory();
+
+  private static final int INITIAL_MESSAGE_CAPACITY = 512;
+
+  private static final String EDNS_CLIENT_SUBNET = "edns_client_subnet";
+
+  private static final int ROOT = 0;
+  private static final int RESULT = 1;
+  private static final int ANSWERS = 2;
+  private static final int ANSWER = 3;
+
+  private final Format format;
+  private final CompletableFuture<Result> body = new CompletableFuture<>();
+
+  private Flow.Subscription subscription;
+  private boolean empty = true;
+
+  private JsonParser parser;
+  private int level = ROOT;
+  private int skipDepth;
+  private boolean skipNext;
+  private String field;
+  private Result result;
+  private List<Answer> records;
+  private Answer answer;
+
+  private ByteBuffer message;
+
+  ResultSubscriber(Format format) {
+    this.format = format;
+  }
+
+  /**
+   * Returns a body handler decoding responses of the given format. Responses with a status code other than 2xx are
+   * discarded and fail with a {@link Do4jSerializeException}.
+   */
+  static HttpResponse.BodyHandler<Result> handler(Format format) {
+    return responseInfo -> {
+      if (responseInfo.statusCode() / 100 != 2) {
+        return BodySubscribers.mapping(BodySubscribers.discarding(), ignored -> {
+          throw new UnexpectedStatusException(responseInfo.statusCode());
+        });
+      }
+
+      return new ResultSubscriber(format);
+    };
+  }
+
+  @Override
+  public CompletionStage<Result> getBody() {
+    return body;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    subscription.request(1);
+  }
+
+  @Override
+  public void onNext(List<ByteBuffer> buffers) {
+    if (body.isDone()) {
+      return;
+    }
+
+    try {
+      for (ByteBuffer buffer : buffers) {
+        if (buffer.hasRemaining()) {
+          empty = false;
+
+          if (format == Format.WIRE) {
+            append(buffer);
+          } else {
+            feed(buffer);
+          }
+        }
+      }
+
+      subscription.request(1);
+    } catch (IOException | RuntimeException e) {
+      subscription.cancel();
+      body.completeExceptionally(e instanceof Do4jSerializeException ? e : new Do4jSerializeException(e));
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    body.completeExceptionally(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    if (body.isDone()) {
+      return;
+    }
+
+    try {
+      if (empty) {
+        throw new Do4jSerializeException("Response body is empty");
+      }
+
+      if (format == Format.WIRE) {
+        body.complete(MessageCodec.decode(message.flip()));
+        return;
+      }
+
+      parser.getNonBlockingInputFeeder().endOfInput();
+      next();
+
+      if (result == null || level != ROOT) {
+        throw new Do4jSerializeException("Response body is incomplete");
+      }
+
+      body.complete(result);
+    } catch (IOException | RuntimeException e) {
+      body.completeExceptionally(e instanceof Do4jSerializeException ? e : new Do4jSerializeException(e));
+    }
+  }
+
+  /**
+   * Copies a buffer of a wire-format message into the message buffer, growing it if needed.
+   */
+  private void append(ByteBuffer buffer) {
+    if (message == null) {
+      message = ByteBuffer.allocate(Math.max(buffer.remaining(), INITIAL_MESSAGE_CAPACITY));
+    } else if (message.remaining() < buffer.remaining()) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(message.capacity() * 2, message.position() + buffer.remaining()));
+      message = grown.put(message.flip());
+    }
+
+    message.put(buffer);
+  }
+
+  private void feed(ByteBuffer buffer) throws IOException {
+    if (parser == null) {
+      parser = factory.createNonBlockingByteBufferParser();
+    }
+
+    ((ByteBufferFeeder) parser.getNonBlockingInputFeeder()).feedInput(buffer);
+    next();
+  }
+
+  /**
+   * Consumes all tokens available from the input fed so far.
+   */
+  private void next() throws IOException {
+    JsonToken token;
+
+    while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+      handle(token);
+    }
+  }
+
+  private void handle(JsonToken token) throws IOException {
+    if (skipDepth > 0) {
+      if (token.isStructStart()) {
+        skipDepth++;
+      } else if (token.isStructEnd()) {
+        skipDepth--;
+      }
+
+      return;
+    }
+
+    if (skipNext) {
+      skipNext = false;
+
+      if (token.isStructStart()) {
+        skipDepth = 1;
+      }
+
+      return;
+    }
+
+    switch (level) {
+      case ROOT:
+        if (token != JsonToken.START_OBJECT || result != null) {
+          throw new Do4jSerializeException("Unexpected token " + token);
+        }
+
+        result = new Result();
+        result.setAnswer(new ArrayList<>());
+        result.setAuthority(new ArrayList<>());
+        level = RESULT;
+        break;
+      case RESULT:
+        if (token == JsonToken.FIELD_NAME) {
+          field = parser.currentName();
+          skipNext = !"Status".equals(field) && !"Answer".equals(field) && !"Authority".equals(field) &&
+              !EDNS_CLIENT_SUBNET.equals(field);
+        } else if (token == JsonToken.END_OBJECT) {
+          level = ROOT;
+        } else if ("Answer".equals(field) && token == JsonToken.START_ARRAY) {
+          records = result.getAnswer();
+          level = ANSWERS;
+        } else if ("Authority".equals(field) && token == JsonToken.START_ARRAY) {
+          records = result.getAuthority();
+          level = ANSWERS;
+        } else if ("Status".equals(field) && token == JsonToken.VALUE_NUMBER_INT) {
+          result.setStatus(parser.getIntValue());
+        } else if (EDNS_CLIENT_SUBNET.equals(field) && token == JsonToken.VALUE_STRING) {
+          result.setEdnsClientSubnet(parser.getText());
+        } else if (token.isStructStart()) {
+          skipDepth = 1;
+        }
+        break;
+      case ANSWERS:
+        if (token == JsonToken.START_OBJECT) {
+          answer = new Answer();
+          level = ANSWER;
+        } else if (token == JsonToken.END_ARRAY) {
+          level = RESULT;
+        } else if (token.isStructStart()) {
+          skipDepth = 1;
+        }
+        break;
+      case ANSWER:
+        if (token == JsonToken.FIELD_NAME) {
+          field = parser.currentName();
+          skipNext = !"name".equals(field) && !"type".equals(field) && !"TTL".equals(field) && !"data".equals(field);
+        } else if (token == JsonToken.END_OBJECT) {
+          records.add(answer);
+          level = ANSWERS;
+        } else if (token.isStructStart()) {
+          skipDepth = 1;
+        } else {
+          setAnswerField(token);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unexpected level " + level);
+    }
+  }
+
+  private void setAnswerField(JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return;
+    }
+
+    switch (field) {
+      case "name":
+        answer.setName(parser.getText());
+        break;
+      case "type":
+        answer.setType(parser.getValueAsInt());
+        break;
+      case "TTL":
+        answer.setTTL(parser.getValueAsInt());
+        break;
+      case "data":
+        answer.setData(parser.getText());
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Thrown for responses with a status code other than 2xx, so they can be told apart from malformed responses.
+   */
+  static class UnexpectedStatusException extends Do4jSerializeException {
+    private static final long serialVersionUID = 1L;
+
+    UnexpectedStatusException(int statusCode) {
+      super("Unexpected response status code " + statusCode);
+    }
+  }
+}
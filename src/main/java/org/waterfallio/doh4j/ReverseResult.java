@@ -0,0 +1,78 @@
+package org.waterfallio.doh4j;
+
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ReverseResult class holds the outcome of the reverse (PTR) lookup of a single address: either the result of the
+ * lookup or the error that made it fail.
+ *
+ * @see Doh4j.Doh4jClient#lookupReverse(java.util.Collection, int, Ordering)
+ */
+public class ReverseResult {
+  private final InetAddress address;
+  private final Result result;
+  private final Throwable error;
+
+  ReverseResult(InetAddress address, Result result, Throwable error) {
+    this.address = address;
+    this.result = result;
+    this.error = error;
+  }
+
+  /**
+   * @return the address that was looked up
+   */
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * @return the result of the lookup, or null if the lookup failed
+   */
+  public Result getResult() {
+    return result;
+  }
+
+  /**
+   * @return the error that made the lookup fail, or null if it succeeded
+   */
+  public Throwable getError() {
+    return error;
+  }
+
+  /**
+   * Returns the host names of the PTR records of the address, without their trailing dot.
+   *
+   * @return the host names, empty if the lookup failed or the address has no PTR records
+   */
+  public List<String> getHostNames() {
+    List<String> hostNames = new ArrayList<>();
+
+    if (result != null && result.getAnswer() != null) {
+      for (Answer answer : result.getAnswer()) {
+        String target = answer.getType() == Type.PTR ? answer.getTarget() : null;
+
+        if (target != null) {
+          hostNames.add(target.length() > 1 && target.endsWith(".") ? target.substring(0, target.length() - 1) :
+              target);
+        }
+      }
+    }
+
+    return hostNames;
+  }
+
+  @Override
+  public String toString() {
+    return "ReverseResult{" +
+        "address=" + address.getHostAddress() +
+        (error == null ? ", result=" + result : ", error=" + error) +
+        '}';
+  }
+}
@@ -0,0 +1,28 @@
+package org.waterfallio.doh4j;
+
+/**
+ * The Strategy enum defines how a {@link Doh4j.Doh4jClient} distributes a lookup across its resolvers.
+ *
+ * @see Doh4j.Doh4jClient.Doh4jClientBuilder#strategy(Strategy)
+ */
+public enum Strategy {
+  /**
+   * Requests resolvers one at a time, continuing with the next resolver only after the previous one has failed.
+   */
+  SEQUENTIAL,
+
+  /**
+   * Requests the first resolver, and additionally requests the next resolver whenever no answer has arrived within
+   * the hedge delay, or the hedge percentile of the latency of the resolver, or the previous request has failed. The
+   * first successful answer wins, and the remaining requests are cancelled.
+   *
+   * @see Doh4j.Doh4jClient.Doh4jClientBuilder#hedgeDelay(java.time.Duration)
+   * @see Doh4j.Doh4jClient.Doh4jClientBuilder#hedgePercentile(double)
+   */
+  HEDGED,
+
+  /**
+   * Requests all resolvers at once. The first successful answer wins, and the remaining requests are cancelled.
+   */
+  RACE
+}
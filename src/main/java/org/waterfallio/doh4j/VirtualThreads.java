@@ -0,0 +1,29 @@
+package org.waterfallio.doh4j;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>The VirtualThreads class creates executors running each task on a new virtual thread. Virtual threads require
+ * Java 21, so this baseline version reports them as unsupported and a Java 21 version in the multi-release JAR
+ * replaces it.</p>
+ */
+class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * Returns whether the runtime supports virtual threads, which this baseline version never does.
+   */
+  static boolean isSupported() {
+    return false;
+  }
+
+  /**
+   * Returns an executor starting a new virtual thread for each task. Callers check {@link #isSupported()} first.
+   *
+   * @throws IllegalStateException always, as the runtime does not support virtual threads
+   */
+  static ExecutorService newExecutor() {
+    throw new IllegalStateException("Virtual threads are not supported");
+  }
+}
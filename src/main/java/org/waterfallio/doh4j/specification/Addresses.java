@@ -0,0 +1,188 @@
+package org.waterfallio.doh4j.specification;
+
+/**
+ * Parsing and formatting of IPv4 and IPv6 address literals without resolving host names.
+ */
+class Addresses {
+  private Addresses() {
+  }
+
+  /**
+   * Parses an IPv4 address in dotted-decimal notation if length is 4, or an IPv6 address if length is 16.
+   *
+   * @return the address bytes, or null if the text is not a valid address of the given length
+   */
+  static byte[] parse(String text, int length) {
+    if (text == null) {
+      return null;
+    }
+
+    if (length == 4) {
+      byte[] address = new byte[4];
+      return parseIpv4(text, 0, text.length(), address, 0) ? address : null;
+    }
+
+    return length == 16 ? parseIpv6(text) : null;
+  }
+
+  /**
+   * Formats an IPv4 address in dotted-decimal notation, or an IPv6 address in the canonical text representation of
+   * RFC 5952, i.e. lowercase hexadecimal with the longest run of two or more zero groups compressed.
+   */
+  static String format(byte[] address) {
+    StringBuilder builder = new StringBuilder(address.length == 4 ? 15 : 39);
+
+    if (address.length == 4) {
+      for (int i = 0; i < 4; i++) {
+        if (i > 0) builder.append('.');
+        builder.append(Byte.toUnsignedInt(address[i]));
+      }
+
+      return builder.toString();
+    }
+
+    int bestStart = -1;
+    int bestLength = 1;
+    int runStart = -1;
+
+    for (int i = 0; i < 8; i++) {
+      if (group(address, i) == 0) {
+        if (runStart < 0) runStart = i;
+        if (i - runStart + 1 > bestLength) {
+          bestStart = runStart;
+          bestLength = i - runStart + 1;
+        }
+      } else {
+        runStart = -1;
+      }
+    }
+
+    for (int i = 0; i < 8; i++) {
+      if (i == bestStart) {
+        builder.append("::");
+        i += bestLength - 1;
+        continue;
+      }
+
+      if (i > 0 && i != bestStart + bestLength) {
+        builder.append(':');
+      }
+
+      builder.append(Integer.toHexString(group(address, i)));
+    }
+
+    return builder.toString();
+  }
+
+  private static int group(byte[] address, int index) {
+    return (Byte.toUnsignedInt(address[index * 2]) << 8) | Byte.toUnsignedInt(address[index * 2 + 1]);
+  }
+
+  private static boolean parseIpv4(String text, int start, int end, byte[] address, int offset) {
+    int octets = 0;
+    int i = start;
+
+    while (octets < 4) {
+      int value = 0;
+      int digits = 0;
+
+      while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9' && digits < 4) {
+        value = value * 10 + (text.charAt(i++) - '0');
+        digits++;
+      }
+
+      if (digits == 0 || digits > 3 || value > 255) {
+        return false;
+      }
+
+      address[offset + octets++] = (byte) value;
+
+      if (octets < 4) {
+        if (i >= end || text.charAt(i) != '.') {
+          return false;
+        }
+
+        i++;
+      }
+    }
+
+    return i == end;
+  }
+
+  private static byte[] parseIpv6(String text) {
+    byte[] address = new byte[16];
+    int length = text.length();
+    int groups = 0;
+    int compressAt = -1;
+    int i = 0;
+
+    if (text.startsWith("::")) {
+      compressAt = 0;
+      i = 2;
+    } else if (length == 0 || text.charAt(0) == ':') {
+      return null;
+    }
+
+    while (i < length) {
+      int end = i;
+      int value = 0;
+
+      while (end < length && end - i < 5 && Character.digit(text.charAt(end), 16) >= 0) {
+        value = (value << 4) | Character.digit(text.charAt(end++), 16);
+      }
+
+      if (end < length && text.charAt(end) == '.') {
+        if (groups > 6 || !parseIpv4(text, i, length, address, groups * 2)) {
+          return null;
+        }
+
+        groups += 2;
+        break;
+      }
+
+      if (end == i || end - i > 4 || groups == 8) {
+        return null;
+      }
+
+      address[groups * 2] = (byte) (value >>> 8);
+      address[groups * 2 + 1] = (byte) value;
+      groups++;
+      i = end;
+
+      if (i == length) {
+        break;
+      }
+
+      if (text.charAt(i++) != ':' || i == length) {
+        return null;
+      }
+
+      if (text.charAt(i) == ':') {
+        if (compressAt >= 0) {
+          return null;
+        }
+
+        compressAt = groups;
+        i++;
+      }
+    }
+
+    if (compressAt < 0) {
+      return groups == 8 ? address : null;
+    }
+
+    if (groups == 8) {
+      return null;
+    }
+
+    int tail = (groups - compressAt) * 2;
+
+    System.arraycopy(address, compressAt * 2, address, 16 - tail, tail);
+
+    for (int j = compressAt * 2; j < 16 - tail; j++) {
+      address[j] = 0;
+    }
+
+    return address;
+  }
+}
@@ -1,10 +1,19 @@
 package org.waterfallio.doh4j.specification;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Objects;
 
 /**
- * <a href="https://developers.google.com/speed/public-dns/docs/doh">DNS-over-HTTPS (DoH)</a>
- * <a href="https://developers.google.com/speed/public-dns/docs/doh/json">JSON API for DNS over HTTPS (DoH)</a>
+ * <p><a href="https://developers.google.com/speed/public-dns/docs/doh">DNS-over-HTTPS (DoH)</a>
+ * <a href="https://developers.google.com/speed/public-dns/docs/doh/json">JSON API for DNS over HTTPS (DoH)</a></p>
+ *
+ * <p>Besides the record data in presentation format, answers provide typed accessors for the most common record
+ * types. Typed values are parsed on first access and memoized, so record types a caller never inspects cost nothing
+ * beyond their data.</p>
  */
 public class Answer {
   private String name;
@@ -12,12 +21,22 @@ public class Answer {
   private int TTL;
   private String data;
 
+  private volatile byte[] address;
+  private volatile InetAddress inetAddress;
+
+  private String target;
+  private int priority = -1;
+  private int weight = -1;
+  private int port = -1;
+  private volatile boolean parsed;
+
   public String getName() {
     return name;
   }
 
   public void setName(String name) {
     this.name = name;
+    this.inetAddress = null;
   }
 
   public int getType() {
@@ -26,22 +45,205 @@ public class Answer {
 
   public void setType(int type) {
     this.type = type;
+    reset();
   }
 
+  @JsonProperty("TTL")
   public int getTTL() {
     return TTL;
   }
 
+  @JsonProperty("TTL")
   public void setTTL(int TTL) {
     this.TTL = TTL;
   }
 
   public String getData() {
+    if (data == null && address != null) {
+      data = Addresses.format(address);
+    }
+
     return data;
   }
 
   public void setData(String data) {
     this.data = data;
+    reset();
+  }
+
+  /**
+   * Returns the raw address of an {@link Type#A} (4 bytes) or {@link Type#AAAA} (16 bytes) record.
+   *
+   * @return a copy of the address bytes, or null if this is not an address record or its data is not a valid address
+   */
+  @JsonIgnore
+  public byte[] getAddressBytes() {
+    byte[] address = addressBytes();
+
+    return address != null ? address.clone() : null;
+  }
+
+  /**
+   * Sets the raw address of an {@link Type#A} or {@link Type#AAAA} record. The record data is derived from the
+   * address when first requested.
+   *
+   * @param address the address bytes, 4 for IPv4 or 16 for IPv6
+   */
+  @JsonIgnore
+  public void setAddressBytes(byte[] address) {
+    if (address != null && address.length != 4 && address.length != 16) {
+      throw new IllegalArgumentException("Invalid address length " + address.length);
+    }
+
+    this.data = null;
+    reset();
+    this.address = address;
+  }
+
+  /**
+   * Returns the address of an {@link Type#A} or {@link Type#AAAA} record, with the record name (without the trailing
+   * dot) as its host name. No name service is involved in creating the address.
+   *
+   * @return the address, or null if this is not an address record or its data is not a valid address
+   */
+  @JsonIgnore
+  public InetAddress getAddress() {
+    InetAddress inetAddress = this.inetAddress;
+
+    if (inetAddress == null) {
+      byte[] address = addressBytes();
+
+      if (address == null) {
+        return null;
+      }
+
+      try {
+        inetAddress = InetAddress.getByAddress(hostName(name), address);
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e);
+      }
+
+      this.inetAddress = inetAddress;
+    }
+
+    return inetAddress;
+  }
+
+  /**
+   * Returns the target domain name of a {@link Type#CNAME}, {@link Type#DNAME}, {@link Type#NS}, {@link Type#PTR},
+   * {@link Type#MX} or {@link Type#SRV} record.
+   *
+   * @return the target domain name, or null for other record types
+   */
+  @JsonIgnore
+  public String getTarget() {
+    parse();
+    return target;
+  }
+
+  /**
+   * Returns the preference of an {@link Type#MX} record or the priority of an {@link Type#SRV} record.
+   *
+   * @return the preference or priority, or -1 for other record types
+   */
+  @JsonIgnore
+  public int getPriority() {
+    parse();
+    return priority;
+  }
+
+  /**
+   * Returns the weight of an {@link Type#SRV} record.
+   *
+   * @return the weight, or -1 for other record types
+   */
+  @JsonIgnore
+  public int getWeight() {
+    parse();
+    return weight;
+  }
+
+  /**
+   * Returns the port of an {@link Type#SRV} record.
+   *
+   * @return the port, or -1 for other record types
+   */
+  @JsonIgnore
+  public int getPort() {
+    parse();
+    return port;
+  }
+
+  private byte[] addressBytes() {
+    byte[] address = this.address;
+
+    if (address == null && (type == Type.A || type == Type.AAAA)) {
+      address = Addresses.parse(data, type == Type.A ? 4 : 16);
+      this.address = address;
+    }
+
+    return address;
+  }
+
+  private void parse() {
+    if (parsed) {
+      return;
+    }
+
+    String data = getData();
+
+    if (data != null) {
+      switch (type) {
+        case Type.CNAME:
+        case Type.DNAME:
+        case Type.NS:
+        case Type.PTR:
+          target = data;
+          break;
+        case Type.MX:
+          String[] mx = data.split(" ", 2);
+          if (mx.length == 2) {
+            priority = parseInt(mx[0]);
+            target = mx[1];
+          }
+          break;
+        case Type.SRV:
+          String[] srv = data.split(" ", 4);
+          if (srv.length == 4) {
+            priority = parseInt(srv[0]);
+            weight = parseInt(srv[1]);
+            port = parseInt(srv[2]);
+            target = srv[3];
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    parsed = true;
+  }
+
+  private void reset() {
+    address = null;
+    inetAddress = null;
+    target = null;
+    priority = -1;
+    weight = -1;
+    port = -1;
+    parsed = false;
+  }
+
+  private static int parseInt(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String hostName(String name) {
+    return name != null && name.length() > 1 && name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
   }
 
   @Override
@@ -50,7 +252,7 @@ public class Answer {
         "name='" + name + '\'' +
         ", type=" + type +
         ", TTL=" + TTL +
-        ", data='" + data + '\'' +
+        ", data='" + getData() + '\'' +
         '}';
   }
 
@@ -64,11 +266,11 @@ public class Answer {
     return type == answer.type &&
         TTL == answer.TTL &&
         Objects.equals(name, answer.name) &&
-        Objects.equals(data, answer.data);
+        Objects.equals(getData(), answer.getData());
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(name, type, TTL, data);
+    return Objects.hash(name, type, TTL, getData());
   }
 }
@@ -1,5 +1,6 @@
 package org.waterfallio.doh4j.specification;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.ArrayList;
@@ -17,6 +18,15 @@ public class Result {
   @JsonProperty("Answer")
   private List<Answer> answer = new ArrayList<>();
 
+  @JsonProperty("Authority")
+  private List<Answer> authority = new ArrayList<>();
+
+  @JsonProperty("edns_client_subnet")
+  private String ednsClientSubnet;
+
+  @JsonIgnore
+  private boolean stale;
+
   public List<Answer> getAnswer() {
     return answer;
   }
@@ -25,6 +35,20 @@ public class Result {
     this.answer = answer;
   }
 
+  /**
+   * Returns the records of the authority section. For NXDOMAIN and NODATA responses it usually holds the SOA record of
+   * the zone, which determines how long the negative answer may be cached.
+   *
+   * @return the authority records, empty if the response had none
+   */
+  public List<Answer> getAuthority() {
+    return authority;
+  }
+
+  public void setAuthority(List<Answer> authority) {
+    this.authority = authority;
+  }
+
   public int getStatus() {
     return status;
   }
@@ -33,11 +57,67 @@ public class Result {
     this.status = status;
   }
 
+  /**
+   * Returns the EDNS client subnet of the response, as the address of the subnet followed by the scope prefix length
+   * chosen by the resolver, e.g. "198.51.100.0/24". The answer applies to all clients within the address truncated to
+   * the scope prefix length, and to any client if the scope prefix length is 0.
+   *
+   * @return the client subnet and scope, or null if the resolver did not return one
+   */
+  @JsonProperty("edns_client_subnet")
+  public String getEdnsClientSubnet() {
+    return ednsClientSubnet;
+  }
+
+  @JsonProperty("edns_client_subnet")
+  public void setEdnsClientSubnet(String ednsClientSubnet) {
+    this.ednsClientSubnet = ednsClientSubnet;
+  }
+
+  /**
+   * Returns the scope prefix length of the EDNS client subnet of the response.
+   *
+   * @return the scope prefix length, or -1 if the resolver did not return a client subnet
+   * @see #getEdnsClientSubnet()
+   */
+  @JsonIgnore
+  public int getScopePrefix() {
+    int separator = ednsClientSubnet != null ? ednsClientSubnet.lastIndexOf('/') : -1;
+
+    if (separator < 0) {
+      return -1;
+    }
+
+    try {
+      return Integer.parseInt(ednsClientSubnet.substring(separator + 1));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns whether this result was served from the cache past its expiry because the resolvers could not be reached.
+   *
+   * @return true if this result is stale
+   */
+  @JsonIgnore
+  public boolean isStale() {
+    return stale;
+  }
+
+  @JsonIgnore
+  public void setStale(boolean stale) {
+    this.stale = stale;
+  }
+
   @Override
   public String toString() {
     return "Result{" +
         "status=" + status +
         ", answer=" + answer +
+        (authority == null || authority.isEmpty() ? "" : ", authority=" + authority) +
+        (ednsClientSubnet == null ? "" : ", ednsClientSubnet=" + ednsClientSubnet) +
+        (stale ? ", stale=true" : "") +
         '}';
   }
 
@@ -49,11 +129,13 @@ public class Result {
     Result result = (Result) o;
 
     return status == result.status &&
-        Objects.equals(answer, result.answer);
+        Objects.equals(answer, result.answer) &&
+        Objects.equals(authority, result.authority) &&
+        Objects.equals(ednsClientSubnet, result.ednsClientSubnet);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(status, answer);
+    return Objects.hash(status, answer, authority, ednsClientSubnet);
   }
 }
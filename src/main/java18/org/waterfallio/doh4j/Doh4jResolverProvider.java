@@ -0,0 +1,202 @@
+package org.waterfallio.doh4j;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.spi.InetAddressResolver;
+import java.net.spi.InetAddressResolverProvider;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>The Doh4jResolverProvider class resolves host names of the whole JVM over HTTPS (JDK 18+), so that every
+ * {@link InetAddress#getByName(String)}, including those of libraries that do not use Doh4j, goes through a
+ * {@link Doh4j.Doh4jClient} and its TTL-aware cache.</p>
+ *
+ * <p>The provider is registered as a service, but stays inactive unless the {@code doh4j.resolver.enabled} system
+ * property is set to {@code true}. It is configured with the following system properties:</p>
+ * <ul>
+ *   <li>{@code doh4j.resolver.urls}: comma-separated JSON API resolver URLs, by default Google, Cloudflare and
+ *   Quad9</li>
+ *   <li>{@code doh4j.resolver.cacheSize}: the maximum number of cached results, by default 10000</li>
+ *   <li>{@code doh4j.resolver.timeout}: the time in milliseconds to wait for the resolvers, by default 5000</li>
+ * </ul>
+ *
+ * <p>A and AAAA records are looked up in parallel. Single-label names, the host names of the resolvers themselves,
+ * reverse lookups and names the resolvers cannot resolve are handled by the built-in resolver, so local and
+ * cluster-internal names keep working. Since the JVM caches resolved addresses for a fixed time regardless of their
+ * TTL, set the {@code networkaddress.cache.ttl} security property to 0 to let the Doh4j cache honour record TTLs.</p>
+ */
+public class Doh4jResolverProvider extends InetAddressResolverProvider {
+  static final String ENABLED_PROPERTY = "doh4j.resolver.enabled";
+  static final String URLS_PROPERTY = "doh4j.resolver.urls";
+  static final String CACHE_SIZE_PROPERTY = "doh4j.resolver.cacheSize";
+  static final String TIMEOUT_PROPERTY = "doh4j.resolver.timeout";
+
+  @Override
+  public InetAddressResolver get(Configuration configuration) {
+    return resolver(configuration.builtinResolver());
+  }
+
+  /**
+   * Returns the resolver to install: the built-in resolver itself unless the provider is enabled.
+   */
+  static InetAddressResolver resolver(InetAddressResolver builtin) {
+    if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+      return builtin;
+    }
+
+    return new Doh4jResolver(builtin);
+  }
+
+  @Override
+  public String name() {
+    return "doh4j";
+  }
+
+  /**
+   * Doh4jResolver resolves names with a lazily created {@link Doh4j.Doh4jClient}, falling back to the built-in
+   * resolver. The client is created on first use, since creating it while the JVM installs its resolver could
+   * recursively require name resolution.
+   */
+  static class Doh4jResolver implements InetAddressResolver {
+    private static final Logger log = LoggerFactory.getLogger(Doh4jResolver.class);
+
+    private final InetAddressResolver builtin;
+    private final List<Resolver> resolvers;
+    private final Set<String> resolverHosts;
+    private final long timeout;
+
+    private volatile Doh4j.Doh4jClient client;
+
+    Doh4jResolver(InetAddressResolver builtin) {
+      this(builtin, null);
+    }
+
+    /**
+     * Resolves names with the given client rather than one created from the system properties, if it is not null.
+     */
+    Doh4jResolver(InetAddressResolver builtin, Doh4j.Doh4jClient client) {
+      this.builtin = builtin;
+      this.resolvers = resolvers();
+      this.resolverHosts = resolvers.stream()
+          .map(resolver -> URI.create(resolver.getUrl()).getHost().toLowerCase(Locale.ROOT))
+          .collect(Collectors.toUnmodifiableSet());
+      this.timeout = Long.getLong(TIMEOUT_PROPERTY, 5000);
+      this.client = client;
+    }
+
+    @Override
+    public Stream<InetAddress> lookupByName(String host, LookupPolicy lookupPolicy) throws UnknownHostException {
+      String name = host.toLowerCase(Locale.ROOT);
+
+      if (name.indexOf('.') < 0 || resolverHosts.contains(name)) {
+        return builtin.lookupByName(host, lookupPolicy);
+      }
+
+      int characteristics = lookupPolicy.characteristics();
+      boolean ipv4 = (characteristics & LookupPolicy.IPV4) != 0;
+      boolean ipv6 = (characteristics & LookupPolicy.IPV6) != 0;
+
+      CompletableFuture<Result> a = ipv4 ? client().lookupAsync(host, Type.A) : null;
+      CompletableFuture<Result> aaaa = ipv6 ? client().lookupAsync(host, Type.AAAA) : null;
+
+      List<InetAddress> ipv4Addresses = addresses(host, a);
+      List<InetAddress> ipv6Addresses = addresses(host, aaaa);
+
+      if (ipv4Addresses.isEmpty() && ipv6Addresses.isEmpty()) {
+        return builtin.lookupByName(host, lookupPolicy);
+      }
+
+      return (characteristics & LookupPolicy.IPV6_FIRST) != 0
+          ? Stream.concat(ipv6Addresses.stream(), ipv4Addresses.stream())
+          : Stream.concat(ipv4Addresses.stream(), ipv6Addresses.stream());
+    }
+
+    @Override
+    public String lookupByAddress(byte[] address) throws UnknownHostException {
+      return builtin.lookupByAddress(address);
+    }
+
+    private List<InetAddress> addresses(String host, CompletableFuture<Result> lookup) {
+      List<InetAddress> addresses = new ArrayList<>();
+
+      if (lookup == null) {
+        return addresses;
+      }
+
+      try {
+        for (Answer answer : lookup.get(timeout, TimeUnit.MILLISECONDS).getAnswer()) {
+          byte[] address = answer.getAddressBytes();
+
+          if (address != null) {
+            addresses.add(InetAddress.getByAddress(host, address));
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        if (log.isDebugEnabled()) {
+          log.debug("Failed to resolve {} over HTTPS, falling back to built-in resolver", host, e);
+        }
+      }
+
+      return addresses;
+    }
+
+    private Doh4j.Doh4jClient client() {
+      Doh4j.Doh4jClient client = this.client;
+
+      if (client == null) {
+        synchronized (this) {
+          client = this.client;
+
+          if (client == null) {
+            Doh4j.Doh4jClient.Doh4jClientBuilder builder = Doh4j.builder()
+                .cache(Integer.getInteger(CACHE_SIZE_PROPERTY, 10_000))
+                .timeout(Duration.ofMillis(timeout));
+
+            resolvers.forEach(resolver -> builder.resolver(resolver.getUrl(), resolver.getMethod(),
+                resolver.getFormat()));
+
+            client = builder.build();
+            this.client = client;
+          }
+        }
+      }
+
+      return client;
+    }
+
+    private static List<Resolver> resolvers() {
+      String urls = System.getProperty(URLS_PROPERTY);
+
+      if (urls == null || urls.isBlank()) {
+        return List.of(Resolver.GOOGLE, Resolver.CLOUDFLARE, Resolver.QUAD9);
+      }
+
+      List<Resolver> resolvers = new ArrayList<>();
+
+      for (String url : urls.split(",")) {
+        if (!url.isBlank()) {
+          resolvers.add(new Resolver(url.trim()));
+        }
+      }
+
+      return resolvers;
+    }
+  }
+}
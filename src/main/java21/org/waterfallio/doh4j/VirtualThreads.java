@@ -0,0 +1,28 @@
+package org.waterfallio.doh4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>The VirtualThreads class creates executors running each task on a new virtual thread. This is the Java 21
+ * version from the multi-release JAR, replacing the baseline version that reports virtual threads as
+ * unsupported.</p>
+ */
+class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * Returns whether the runtime supports virtual threads, which it always does on Java 21.
+   */
+  static boolean isSupported() {
+    return true;
+  }
+
+  /**
+   * Returns an executor starting a new virtual thread for each task.
+   */
+  static ExecutorService newExecutor() {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("doh4j-", 0).factory());
+  }
+}
@@ -0,0 +1,57 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AddressRangeTest {
+  @Test
+  public void testIpv4Range() throws Exception {
+    assertEquals(List.of("192.0.2.4", "192.0.2.5", "192.0.2.6", "192.0.2.7"), addresses("192.0.2.5/30"));
+    assertEquals(List.of("192.0.2.1"), addresses("192.0.2.1"));
+    assertEquals(List.of("192.0.2.254", "192.0.2.255", "192.0.3.0"), addresses("192.0.2.255/31", "192.0.3.0/32"));
+  }
+
+  @Test
+  public void testIpv6Range() throws Exception {
+    assertEquals(List.of("2001:db8:0:0:0:0:0:fe", "2001:db8:0:0:0:0:0:ff"), addresses("2001:db8::ff/127"));
+    assertEquals(256, addresses("2001:db8::/120").size());
+  }
+
+  @Test
+  public void testInvalid() {
+    for (String text : List.of("example.com", "192.0.2", "192.0.2.256", "192.0.02.1", "192.0.2.1/33", "192.0.2.1/",
+        "2001:db8::/129", "2001:db8:::1", "cafe")) {
+      assertThrows(IllegalArgumentException.class, () -> AddressRange.parse(text), text);
+    }
+  }
+
+  @Test
+  public void testReverseName() throws Exception {
+    assertEquals("1.2.0.192.in-addr.arpa.", Query.reverse(InetAddress.getByName("192.0.2.1")).getName());
+    assertEquals("255.0.10.10.in-addr.arpa.", Query.reverseName(new byte[]{10, 10, 0, (byte) 255}));
+    assertEquals("1.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.8.b.d.0.1.0.0.2.ip6.arpa.",
+        Query.reverse(InetAddress.getByName("2001:db8::1")).getName());
+  }
+
+  private static List<String> addresses(String... texts) throws Exception {
+    List<AddressRange> ranges = new ArrayList<>();
+
+    for (String text : texts) {
+      ranges.add(AddressRange.parse(text));
+    }
+
+    List<String> addresses = new ArrayList<>();
+
+    for (Iterator<byte[]> iterator = AddressRange.iterator(ranges); iterator.hasNext(); ) {
+      addresses.add(InetAddress.getByAddress(iterator.next()).getHostAddress());
+    }
+
+    return addresses;
+  }
+}
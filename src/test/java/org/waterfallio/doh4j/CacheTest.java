@@ -0,0 +1,331 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.Test;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheTest {
+  private final AtomicLong clock = new AtomicLong();
+  private final Query query = new Query("example.com.", Type.A);
+
+  @Test
+  public void testExpiresAfterMinimumTTL() {
+    Cache cache = new Cache(10, clock::get);
+    Result result = getResult(300, 60);
+
+    cache.put(query, result);
+
+    clock.set(59_999);
+    assertSame(result, cache.get(query));
+
+    clock.set(60_000);
+    assertNull(cache.get(query));
+
+    assertEquals(1, cache.stats().getHits());
+    assertEquals(1, cache.stats().getMisses());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    Cache cache = new Cache(2, clock::get);
+    Query second = new Query("example.org.", Type.A);
+    Query third = new Query("example.net.", Type.A);
+
+    cache.put(query, getResult(300));
+    clock.set(1);
+    cache.put(second, getResult(300));
+    clock.set(2);
+    cache.get(query);
+    clock.set(3);
+    cache.put(third, getResult(300));
+
+    assertNotNull(cache.get(query));
+    assertNull(cache.get(second));
+    assertNotNull(cache.get(third));
+    assertEquals(1, cache.stats().getEvictions());
+  }
+
+  @Test
+  public void testEvictionKeepsFrequentlyHit() {
+    Cache cache = new Cache(128, clock::get);
+    List<Query> hot = new ArrayList<>();
+
+    for (int i = 0; i < 128; i++) {
+      Query query = new Query("entry" + i + ".example.com.", Type.A);
+
+      cache.put(query, getResult(3600));
+
+      if (i % 4 == 0) {
+        hot.add(query);
+      }
+    }
+
+    for (int i = 0; i < 2000; i++) {
+      clock.set(2 * i + 1);
+      cache.put(new Query("new" + i + ".example.com.", Type.A), getResult(3600));
+      clock.set(2 * i + 2);
+
+      for (Query query : hot) {
+        assertNotNull(cache.get(query), query.getName());
+      }
+    }
+  }
+
+  @Test
+  public void testRefreshAhead() {
+    Cache cache = new Cache(10, clock::get);
+    Result refreshed = getResult(300);
+    AtomicInteger refreshes = new AtomicInteger();
+
+    cache.refreshAhead(0.5, 2, q -> {
+      refreshes.incrementAndGet();
+      cache.put(q, refreshed);
+      return CompletableFuture.completedFuture(refreshed);
+    });
+
+    Result result = getResult(100);
+    cache.put(query, result);
+
+    clock.set(60_000);
+    assertSame(result, cache.get(query));
+    assertEquals(0, refreshes.get());
+
+    assertSame(result, cache.get(query));
+    assertEquals(1, refreshes.get());
+
+    assertSame(refreshed, cache.get(query));
+    assertEquals(1, cache.stats().getRefreshes());
+  }
+
+  @Test
+  public void testRefreshAhead_Uncacheable() {
+    Cache cache = new Cache(10, clock::get);
+    AtomicInteger refreshes = new AtomicInteger();
+
+    cache.refreshAhead(0.5, 1, q -> {
+      refreshes.incrementAndGet();
+      cache.put(q, getResult(0));
+      return CompletableFuture.completedFuture(getResult(0));
+    });
+
+    Result result = getResult(100);
+    cache.put(query, result);
+
+    clock.set(60_000);
+    assertSame(result, cache.get(query));
+    assertSame(result, cache.get(query));
+
+    assertEquals(2, refreshes.get());
+    assertEquals(2, cache.stats().getRefreshes());
+  }
+
+  @Test
+  public void testServeStale() {
+    Cache cache = new Cache(10, clock::get);
+    Result result = getResult(300);
+
+    cache.serveStale(60_000);
+    cache.put(query, result);
+
+    assertNull(cache.getStale(query));
+
+    clock.set(300_000);
+    assertNull(cache.get(query));
+
+    Result stale = cache.getStale(query);
+    assertTrue(stale.isStale());
+    assertEquals(Cache.STALE_TTL, stale.getAnswer().get(0).getTTL());
+    assertEquals(result.getAnswer().get(0).getData(), stale.getAnswer().get(0).getData());
+    assertFalse(cache.isRecheckPending(query));
+
+    cache.failed(query);
+    assertTrue(cache.isRecheckPending(query));
+
+    clock.set(300_000 + Cache.RECHECK_MILLIS);
+    assertFalse(cache.isRecheckPending(query));
+
+    clock.set(360_000);
+    assertNull(cache.getStale(query));
+  }
+
+  @Test
+  public void testClientSubnetScope() {
+    Cache cache = new Cache(10, clock::get);
+    Query first = new Query("example.com.", Type.A, ClientSubnet.of("198.51.100.0/24"));
+    Query second = new Query("example.com.", Type.A, ClientSubnet.of("203.0.113.0/24"));
+    Result scoped = getResult(300);
+    Result global = getResult(300);
+
+    scoped.setEdnsClientSubnet("198.51.100.0/24");
+    cache.put(first, scoped);
+
+    assertSame(scoped, cache.get(first));
+    assertNull(cache.get(second));
+    assertNull(cache.get(query));
+
+    global.setEdnsClientSubnet("198.51.100.0/0");
+    cache.put(first, global);
+
+    assertSame(global, cache.get(first));
+    assertSame(global, cache.get(second));
+    assertNull(cache.get(query));
+    assertEquals(1, cache.stats().getSize());
+  }
+
+  @Test
+  public void testNegativeCachedForSoaMinimum() {
+    Cache cache = new Cache(1, clock::get);
+    Result nxdomain = getNegativeResult(3, 3600, 300);
+
+    cache.negativeCache(1);
+    cache.put(query, nxdomain);
+
+    clock.set(299_999);
+    assertSame(nxdomain, cache.get(query));
+
+    clock.set(300_000);
+    assertNull(cache.get(query));
+  }
+
+  @Test
+  public void testNegativeDoNotEvictPositive() {
+    Cache cache = new Cache(1, clock::get);
+    Result result = getResult(300);
+
+    cache.negativeCache(1);
+    cache.put(query, result);
+    clock.set(1);
+    cache.put(new Query("missing.example.com.", Type.A), getNegativeResult(3, 60, 300));
+    clock.set(2);
+    cache.put(new Query("nodata.example.com.", Type.A), getNegativeResult(0, 60, 300));
+
+    assertSame(result, cache.get(query));
+    assertNull(cache.get(new Query("missing.example.com.", Type.A)));
+    assertNotNull(cache.get(new Query("nodata.example.com.", Type.A)));
+    assertEquals(1, cache.stats().getEvictions());
+  }
+
+  @Test
+  public void testNegativeNotCachedWithoutSoa() {
+    Cache cache = new Cache(10, clock::get);
+
+    cache.negativeCache(10);
+    cache.put(query, getNegativeResult(3));
+
+    assertNull(cache.get(query));
+  }
+
+  @Test
+  public void testSnapshotRestoredLazily() throws Exception {
+    Path file = Files.createTempFile("doh4j", ".bin");
+    Query expired = new Query("expired.example.com.", Type.A);
+    Query missing = new Query("missing.example.com.", Type.A);
+
+    try {
+      Cache cache = new Cache(10, clock::get);
+
+      cache.negativeCache(10);
+      cache.put(query, getResult(300));
+      cache.put(expired, getResult(10));
+      cache.put(missing, getNegativeResult(3, 60, 300));
+
+      clock.set(100_000);
+      cache.snapshot(file);
+
+      Cache restored = new Cache(10, clock::get);
+
+      restored.negativeCache(10);
+      restored.restore(CacheSnapshot.open(file));
+
+      assertEquals(0, restored.stats().getSize());
+
+      clock.set(200_000);
+      Result result = restored.get(query);
+
+      assertEquals("1.1.1.1", result.getAnswer().get(0).getData());
+      assertEquals(100, result.getAnswer().get(0).getTTL());
+      assertSame(result, restored.get(query));
+      assertNull(restored.get(expired));
+      assertNull(restored.get(missing));
+      assertEquals(1, restored.stats().getSize());
+
+      clock.set(300_000);
+      assertNull(restored.get(query));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testSnapshotEmpty() throws Exception {
+    Path file = Files.createTempFile("doh4j", ".bin");
+
+    try {
+      Cache cache = new Cache(10, clock::get);
+
+      cache.put(new Query("example.com.", Type.A, ClientSubnet.of("198.51.100.0/24")), getResult(300));
+      cache.snapshot(file);
+
+      CacheSnapshot snapshot = CacheSnapshot.open(file);
+
+      assertNotNull(snapshot);
+
+      Cache restored = new Cache(10, clock::get);
+
+      restored.restore(snapshot);
+
+      assertNull(restored.get(query));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private Result getNegativeResult(int status, int... soaTtls) {
+    Result result = new Result();
+
+    result.setStatus(status);
+
+    for (int i = 0; i < soaTtls.length; i += 2) {
+      Answer soa = new Answer();
+
+      soa.setName("example.com.");
+      soa.setType(Type.SOA);
+      soa.setTTL(soaTtls[i]);
+      soa.setData("ns.example.com. hostmaster.example.com. 1 7200 3600 1209600 " + soaTtls[i + 1]);
+
+      result.getAuthority().add(soa);
+    }
+
+    return result;
+  }
+
+  private Result getResult(int... ttls) {
+    Result result = new Result();
+
+    result.setAnswer(new ArrayList<>());
+
+    for (int ttl : ttls) {
+      Answer answer = new Answer();
+
+      answer.setName(query.getName());
+      answer.setType(Type.A);
+      answer.setTTL(ttl);
+      answer.setData("1.1.1.1");
+
+      result.getAnswer().add(answer);
+    }
+
+    return result;
+  }
+}
@@ -5,16 +5,29 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.waterfallio.doh4j.exception.Do4jLookupException;
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
 import org.waterfallio.doh4j.specification.Answer;
 import org.waterfallio.doh4j.specification.Result;
 import org.waterfallio.doh4j.specification.Type;
 
+import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -35,16 +48,13 @@ public class Doh4jTest {
     Result result = getResult();
 
     HttpClient client = mock(HttpClient.class);
-    HttpResponse<byte[]> response = (HttpResponse<byte[]>) mock(HttpResponse.class);
-
     ArgumentCaptor<HttpRequest> requestCaptor =
         ArgumentCaptor.forClass(HttpRequest.class);
 
-    when(response.body())
-        .thenReturn(mapper.writeValueAsBytes(result));
+    byte[] body = mapper.writeValueAsBytes(result);
 
     when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
-        .thenReturn(response);
+        .thenAnswer(respond(body));
 
     Result lookup = Doh4j.builder()
         .client(client)
@@ -59,8 +69,8 @@ public class Doh4jTest {
     assertEquals(result, lookup);
     assertEquals(GOOGLE.getMethod().name(), request.method());
     assertEquals(URI.create(String.format(URL_FORMAT, GOOGLE.getUrl(), name, type)), request.uri());
-    assertTrue(request.headers().firstValue("Content-Type").isPresent());
-    assertEquals("application/dns-json", request.headers().firstValue("Content-Type").get());
+    assertTrue(request.headers().firstValue("Accept").isPresent());
+    assertEquals("application/dns-json", request.headers().firstValue("Accept").get());
   }
 
   @Test
@@ -68,13 +78,11 @@ public class Doh4jTest {
     Result result = getResult();
 
     HttpClient client = mock(HttpClient.class);
-    HttpResponse<byte[]> response = (HttpResponse<byte[]>) mock(HttpResponse.class);
-
-    when(response.body()).thenReturn(mapper.writeValueAsBytes(result));
+    byte[] body = mapper.writeValueAsBytes(result);
 
     when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
         .thenThrow(ConnectException.class)
-        .thenReturn(response);
+        .thenAnswer(respond(body));
 
     Result lookup = Doh4j.builder()
         .client(client)
@@ -115,16 +123,13 @@ public class Doh4jTest {
     Result result = getResult();
 
     HttpClient client = mock(HttpClient.class);
-    HttpResponse<byte[]> response = (HttpResponse<byte[]>) mock(HttpResponse.class);
-
     ArgumentCaptor<HttpRequest> requestCaptor =
         ArgumentCaptor.forClass(HttpRequest.class);
 
-    when(response.body())
-        .thenReturn(mapper.writeValueAsBytes(result));
+    byte[] body = mapper.writeValueAsBytes(result);
 
     when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
-        .thenReturn(CompletableFuture.supplyAsync(() -> response));
+        .thenAnswer(respondAsync(body));
 
     Result lookup = Doh4j.builder()
         .client(client)
@@ -141,8 +146,8 @@ public class Doh4jTest {
     assertEquals(result, lookup);
     assertEquals(GOOGLE.getMethod().name(), request.method());
     assertEquals(URI.create(String.format(URL_FORMAT, GOOGLE.getUrl(), name, type)), request.uri());
-    assertTrue(request.headers().firstValue("Content-Type").isPresent());
-    assertEquals("application/dns-json", request.headers().firstValue("Content-Type").get());
+    assertTrue(request.headers().firstValue("Accept").isPresent());
+    assertEquals("application/dns-json", request.headers().firstValue("Accept").get());
     assertTrue(latch.await(5, TimeUnit.SECONDS));
   }
 
@@ -152,13 +157,11 @@ public class Doh4jTest {
     Result result = getResult();
 
     HttpClient client = mock(HttpClient.class);
-    HttpResponse<byte[]> response = (HttpResponse<byte[]>) mock(HttpResponse.class);
-
-    when(response.body()).thenReturn(mapper.writeValueAsBytes(result));
+    byte[] body = mapper.writeValueAsBytes(result);
 
     when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
         .thenReturn(CompletableFuture.failedFuture(new ConnectException()))
-        .thenReturn(CompletableFuture.supplyAsync(() -> response));
+        .thenAnswer(respondAsync(body));
 
     Result lookup = Doh4j.builder()
         .client(client)
@@ -177,6 +180,167 @@ public class Doh4jTest {
     assertTrue(latch.await(5, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void testLookupClientPerResolver_Prewarmed() throws Exception {
+    Result result = getResult();
+    byte[] body = mapper.writeValueAsBytes(result);
+
+    HttpClient first = mock(HttpClient.class);
+    HttpClient second = mock(HttpClient.class);
+
+    when(first.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(CompletableFuture.failedFuture(new ConnectException()));
+    when(second.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respondAsync(body));
+
+    Result lookup = Doh4j.builder()
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .clientPerResolver(resolver -> resolver.getUrl().contains("resolver1") ? first : second)
+        .prewarm(Duration.ofHours(1))
+        .build()
+        .lookupAsync(name, type)
+        .get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<HttpRequest> requests = ArgumentCaptor.forClass(HttpRequest.class);
+
+    verify(first, times(2))
+        .sendAsync(requests.capture(), any(HttpResponse.BodyHandler.class));
+    verify(second, times(2))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertEquals(result, lookup);
+    assertEquals("https://resolver1.com/resolve?name=.&type=2", requests.getAllValues().get(0).uri().toString());
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    Result result = getResult();
+    HttpClient client = mock(HttpClient.class);
+    List<ErrorCause> causes = new CopyOnWriteArrayList<>();
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenThrow(new ConnectException())
+        .thenAnswer(respond(503, new byte[0]))
+        .thenAnswer(respond(mapper.writeValueAsBytes(result)));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .metricsListener(new MetricsListener() {
+          @Override
+          public void onRequest(Resolver resolver, long latencyNanos, ErrorCause cause) {
+            causes.add(cause);
+          }
+        })
+        .build();
+
+    assertThrows(Do4jLookupException.class, () -> doh4jClient.lookup(name, type));
+    assertEquals(result, doh4jClient.lookup(name, type));
+
+    Metrics metrics = doh4jClient.getMetrics();
+    ResolverMetrics first = metrics.getResolvers().get(0);
+    ResolverMetrics second = metrics.getResolvers().get(1);
+
+    assertEquals(2, first.getRequests());
+    assertEquals(1, first.getErrors(ErrorCause.CONNECT));
+    assertEquals(1, second.getRequests());
+    assertEquals(1, second.getErrors(ErrorCause.HTTP_STATUS));
+    assertEquals(0, metrics.getInflight());
+    assertArrayEquals(new long[]{1, 0}, metrics.getFallbackDepths());
+    assertEquals(1, metrics.getFailedLookups());
+    assertEquals(Arrays.asList(ErrorCause.CONNECT, ErrorCause.HTTP_STATUS, null), causes);
+  }
+
+  @Test
+  public void testMetrics_UnexpectedFailure() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenThrow(new IllegalStateException())
+        .thenThrow(new InterruptedException());
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .build();
+
+    assertThrows(IllegalStateException.class, () -> doh4jClient.lookup(name, type));
+
+    try {
+      assertThrows(Do4jLookupException.class, () -> doh4jClient.lookup(name, type));
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+
+    verify(client, times(2))
+        .send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    Metrics metrics = doh4jClient.getMetrics();
+    ResolverMetrics first = metrics.getResolvers().get(0);
+
+    assertEquals(2, first.getRequests());
+    assertEquals(1, first.getErrors(ErrorCause.OTHER));
+    assertEquals(1, first.getErrors(ErrorCause.INTERRUPTED));
+    assertEquals(0, metrics.getInflight());
+  }
+
+  @Test
+  public void testLookupAttemptTimeout() throws Exception {
+    Result result = getResult();
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenThrow(new HttpTimeoutException("request timed out"))
+        .thenAnswer(respond(mapper.writeValueAsBytes(result)));
+
+    Result lookup = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .attemptTimeout(Duration.ofMillis(500))
+        .build()
+        .lookup(name, type, Duration.ofSeconds(10));
+
+    ArgumentCaptor<HttpRequest> requests = ArgumentCaptor.forClass(HttpRequest.class);
+
+    verify(client, times(2))
+        .send(requests.capture(), any(HttpResponse.BodyHandler.class));
+
+    assertEquals(result, lookup);
+    assertEquals(Optional.of(Duration.ofMillis(500)), requests.getAllValues().get(0).timeout());
+    assertEquals(Optional.of(Duration.ofMillis(500)), requests.getAllValues().get(1).timeout());
+  }
+
+  @Test
+  public void testLookupAsyncDeadline() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(new CompletableFuture<>());
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .timeout(Duration.ofMillis(100))
+        .build();
+
+    long start = System.nanoTime();
+    ExecutionException e = assertThrows(ExecutionException.class, () -> doh4jClient.lookupAsync(name, type).get());
+
+    assertInstanceOf(Do4jLookupException.class, e.getCause());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+    ArgumentCaptor<HttpRequest> request = ArgumentCaptor.forClass(HttpRequest.class);
+
+    verify(client, times(1))
+        .sendAsync(request.capture(), any(HttpResponse.BodyHandler.class));
+
+    assertTrue(request.getValue().timeout().orElseThrow().compareTo(Duration.ofMillis(100)) <= 0);
+  }
+
   @Test
   public void testLookupAsyncFail() throws Exception {
     CountDownLatch latch = new CountDownLatch(1);
@@ -203,6 +367,796 @@ public class Doh4jTest {
     assertTrue(latch.await(5, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void testLookupAsync_Executor() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    CompletableFuture<HttpResponse<?>> response = new CompletableFuture<>();
+    byte[] body = mapper.writeValueAsBytes(getResult());
+    ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "lookup-executor"));
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(invocation -> response.thenApply(r -> respond(invocation.getArgument(1), body)));
+
+    try {
+      CompletableFuture<String> thread = Doh4j.builder()
+          .client(client)
+          .executor(executor)
+          .build()
+          .lookupAsync(name, type)
+          .thenApply(r -> Thread.currentThread().getName());
+
+      response.complete(null);
+
+      assertEquals("lookup-executor", thread.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSnapshot_Executor() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    CountDownLatch snapshots = new CountDownLatch(2);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Path file = Files.createTempFile("doh4j", ".bin");
+
+    try {
+      Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+          .client(client)
+          .executor(runnable -> {
+            snapshots.countDown();
+            executor.execute(runnable);
+          })
+          .cache(10)
+          .snapshot(file, Duration.ofMillis(10))
+          .build();
+
+      assertTrue(snapshots.await(5, TimeUnit.SECONDS));
+      assertNotNull(doh4jClient);
+    } finally {
+      executor.shutdownNow();
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testVirtualThreads() {
+    if (VirtualThreads.isSupported()) {
+      assertNotNull(Doh4j.builder().virtualThreads().build());
+    } else {
+      assertThrows(UnsupportedOperationException.class, () -> Doh4j.builder().virtualThreads());
+    }
+  }
+
+  @Test
+  public void testLookupAsync_InvalidName() {
+    HttpClient client = mock(HttpClient.class);
+    String invalid = "a".repeat(256);
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .build();
+
+    for (int i = 0; i < 2; i++) {
+      ExecutionException e = assertThrows(ExecutionException.class,
+          () -> doh4jClient.lookupAsync(invalid, type).get(5, TimeUnit.SECONDS));
+
+      assertInstanceOf(Do4jSerializeException.class, e.getCause());
+    }
+
+    assertThrows(Do4jSerializeException.class, () -> doh4jClient.lookup(invalid, type));
+    verify(client, never()).sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    for (ResolverMetrics metrics : doh4jClient.getMetrics().getResolvers()) {
+      assertEquals(0, metrics.getRequests());
+      assertEquals(0, metrics.getInflight());
+    }
+  }
+
+  @Test
+  public void testLookup_InvalidNameNotChargedToResolvers() {
+    HttpClient client = mock(HttpClient.class);
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .strategy(Strategy.RACE)
+        .circuitBreaker(1, Duration.ofMinutes(1))
+        .build();
+
+    for (String invalid : List.of("a..example.com", "a".repeat(64) + ".example.com", "a b.example.com".repeat(20))) {
+      assertThrows(Do4jSerializeException.class, () -> doh4jClient.lookup(invalid, type), invalid);
+      assertThrows(ExecutionException.class, () -> doh4jClient.lookupAsync(invalid, type).get(5, TimeUnit.SECONDS));
+    }
+
+    verifyNoInteractions(client);
+    assertEquals(0, doh4jClient.getMetrics().getFailedLookups());
+
+    for (ResolverMetrics metrics : doh4jClient.getMetrics().getResolvers()) {
+      assertEquals(0, metrics.getErrors());
+      assertFalse(metrics.isOpen());
+    }
+  }
+
+  @Test
+  public void testLookupCached() throws Exception {
+    Result result = getResult();
+    result.getAnswer().get(0).setTTL(300);
+
+    HttpClient client = mock(HttpClient.class);
+    byte[] body = mapper.writeValueAsBytes(result);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respond(body));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .cache(100)
+        .build();
+
+    Result first = doh4jClient.lookup(name, type);
+    Result second = doh4jClient.lookupAsync(name, type).get();
+
+    verify(client, times(1))
+        .send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+    verify(client, never())
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertEquals(result, first);
+    assertSame(first, second);
+    assertEquals(1, doh4jClient.getCacheStats().getHits());
+    assertEquals(1, doh4jClient.getCacheStats().getMisses());
+  }
+
+  @Test
+  public void testLookupCached_Negative() throws Exception {
+    String json = "{\"Status\": 3, \"Authority\": [{\"name\": \"example.com.\", \"type\": 6, \"TTL\": 3600, " +
+        "\"data\": \"ns.example.com. hostmaster.example.com. 1 7200 3600 1209600 300\"}]}";
+
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respond(json.getBytes(StandardCharsets.UTF_8)));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .cache(100)
+        .build();
+
+    Result first = doh4jClient.lookup(name, type);
+    Result second = doh4jClient.lookup(name, type);
+
+    verify(client, times(1))
+        .send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertEquals(3, first.getStatus());
+    assertEquals(Type.SOA, first.getAuthority().get(0).getType());
+    assertSame(first, second);
+  }
+
+  @Test
+  public void testLookupNotCached_ZeroTTL() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    byte[] body = mapper.writeValueAsBytes(getResult());
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respond(body));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .cache(100)
+        .build();
+
+    doh4jClient.lookup(name, type);
+    doh4jClient.lookup(name, type);
+
+    verify(client, times(2))
+        .send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertEquals(0, doh4jClient.getCacheStats().getHits());
+  }
+
+  @Test
+  public void testLookupAsyncCoalesced() throws Exception {
+    Result result = getResult();
+
+    HttpClient client = mock(HttpClient.class);
+    CompletableFuture<HttpResponse<Result>> exchange = new CompletableFuture<>();
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(exchange);
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .build();
+
+    CompletableFuture<Result> first = doh4jClient.lookupAsync(name, type);
+    CompletableFuture<Result> second = doh4jClient.lookupAsync(name, type);
+
+    exchange.complete(respond(ResultSubscriber.handler(Resolver.Format.JSON), mapper.writeValueAsBytes(result)));
+
+    assertEquals(result, first.get(5, TimeUnit.SECONDS));
+    assertEquals(result, second.get(5, TimeUnit.SECONDS));
+
+    verify(client, times(1))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+  }
+
+  @Test
+  public void testLookupAsyncCoalesced_LaterDeadline() throws Exception {
+    Result result = getResult();
+
+    HttpClient client = mock(HttpClient.class);
+    CompletableFuture<HttpResponse<Result>> stalled = new CompletableFuture<>();
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(stalled)
+        .thenAnswer(respondAsync(mapper.writeValueAsBytes(result)));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .build();
+
+    CompletableFuture<Result> owner = doh4jClient.lookupAsync(name, type, Duration.ofMillis(50));
+    CompletableFuture<Result> joiner = doh4jClient.lookupAsync(name, type);
+
+    ExecutionException exception = assertThrows(ExecutionException.class, () -> owner.get(5, TimeUnit.SECONDS));
+
+    assertInstanceOf(Do4jLookupException.class, exception.getCause());
+    assertEquals(result, joiner.get(5, TimeUnit.SECONDS));
+
+    verify(client, times(2))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+  }
+
+  @Test
+  public void testLookupHedged() throws Exception {
+    Result result = getResult();
+
+    HttpClient client = mock(HttpClient.class);
+    CompletableFuture<HttpResponse<Result>> stalled = new CompletableFuture<>();
+    byte[] body = mapper.writeValueAsBytes(result);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(stalled)
+        .thenAnswer(respondAsync(body));
+
+    Result lookup = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .strategy(Strategy.HEDGED)
+        .hedgeDelay(Duration.ofMillis(10))
+        .build()
+        .lookup(name, type);
+
+    verify(client, times(2))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertEquals(result, lookup);
+    assertThrows(CancellationException.class, () -> stalled.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testLookupAsyncRaceFail() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(CompletableFuture.failedFuture(new ConnectException()));
+
+    ExecutionException exception = Assertions.assertThrows(ExecutionException.class, () -> {
+      Doh4j.builder()
+          .client(client)
+          .resolver("https://resolver1.com/resolve")
+          .resolver("https://resolver2.com/resolve")
+          .strategy(Strategy.RACE)
+          .build()
+          .lookupAsync(name, type)
+          .get(5, TimeUnit.SECONDS);
+    });
+
+    verify(client, times(2))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertInstanceOf(Do4jLookupException.class, exception.getCause());
+  }
+
+  @Test
+  public void testLookupCircuitBreaker() throws Exception {
+    Result result = getResult();
+
+    HttpClient client = mock(HttpClient.class);
+    ArgumentCaptor<HttpRequest> requestCaptor =
+        ArgumentCaptor.forClass(HttpRequest.class);
+
+    byte[] body = mapper.writeValueAsBytes(result);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenThrow(ConnectException.class)
+        .thenAnswer(respond(body));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .circuitBreaker(1, Duration.ofMinutes(1))
+        .build();
+
+    assertEquals(result, doh4jClient.lookup(name, type));
+    assertEquals(result, doh4jClient.lookup(name, type));
+
+    verify(client, times(3))
+        .send(requestCaptor.capture(), any(HttpResponse.BodyHandler.class));
+
+    List<HttpRequest> requests = requestCaptor.getAllValues();
+
+    assertEquals("resolver1.com", requests.get(0).uri().getHost());
+    assertEquals("resolver2.com", requests.get(1).uri().getHost());
+    assertEquals("resolver2.com", requests.get(2).uri().getHost());
+  }
+
+  @Test
+  public void testLookupSuccessful_WireFormat() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    ArgumentCaptor<HttpRequest> requestCaptor =
+        ArgumentCaptor.forClass(HttpRequest.class);
+
+    ByteBuffer message = ByteBuffer.allocate(64)
+        .putShort((short) 0).putShort((short) 0x8180)
+        .putShort((short) 0).putShort((short) 1).putShort((short) 0).putShort((short) 0)
+        .put(new byte[]{7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0})
+        .putShort((short) type).putShort((short) 1).putInt(0)
+        .putShort((short) 4).put(new byte[]{1, 1, 1, 1})
+        .flip();
+
+    byte[] body = new byte[message.remaining()];
+    message.get(body);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respond(body));
+
+    Result lookup = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/dns-query", Resolver.Method.POST, Resolver.Format.WIRE)
+        .build()
+        .lookup(name, type);
+
+    verify(client, times(1))
+        .send(requestCaptor.capture(), any(HttpResponse.BodyHandler.class));
+
+    HttpRequest request = requestCaptor.getValue();
+
+    assertEquals(getResult(), lookup);
+    assertEquals("POST", request.method());
+    assertEquals(URI.create("https://resolver1.com/dns-query"), request.uri());
+    assertEquals("application/dns-message", request.headers().firstValue("Content-Type").orElse(null));
+    assertEquals("application/dns-message", request.headers().firstValue("Accept").orElse(null));
+    assertEquals(29, request.bodyPublisher().orElseThrow().contentLength());
+  }
+
+  @Test
+  public void testLookupSuccessful_WireFormatGet() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    ArgumentCaptor<HttpRequest> requestCaptor =
+        ArgumentCaptor.forClass(HttpRequest.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenThrow(ConnectException.class);
+
+    Assertions.assertThrows(Do4jLookupException.class, () -> {
+      Doh4j.builder()
+          .client(client)
+          .resolver("https://resolver1.com/dns-query", Resolver.Method.GET, Resolver.Format.WIRE)
+          .build()
+          .lookup("Example.COM.", type);
+    });
+
+    verify(client, times(1))
+        .send(requestCaptor.capture(), any(HttpResponse.BodyHandler.class));
+
+    HttpRequest request = requestCaptor.getValue();
+    String query = Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(MessageCodec.encodeQuery(name, type, 0).array());
+
+    assertEquals("GET", request.method());
+    assertEquals(URI.create("https://resolver1.com/dns-query?dns=" + query), request.uri());
+    assertFalse(request.headers().firstValue("Content-Type").isPresent());
+    assertEquals("application/dns-message", request.headers().firstValue("Accept").orElse(null));
+  }
+
+  @Test
+  public void testLookupAll() throws Exception {
+    Result result = getResult();
+
+    HttpClient client = mock(HttpClient.class);
+    byte[] body = mapper.writeValueAsBytes(result);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(CompletableFuture.failedFuture(new ConnectException()))
+        .thenAnswer(respondAsync(body));
+
+    Query first = new Query(name, Type.A);
+    Query second = new Query(name, Type.AAAA);
+
+    Map<Query, CompletableFuture<Result>> results = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .resolver("https://resolver2.com/resolve")
+        .build()
+        .lookupAll(List.of(first, second, new Query(name, Type.A)), 1);
+
+    assertEquals(List.of(first, second), List.copyOf(results.keySet()));
+    assertEquals(result, results.get(first).get(5, TimeUnit.SECONDS));
+    assertEquals(result, results.get(second).get(5, TimeUnit.SECONDS));
+
+    verify(client, times(3))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+  }
+
+  @Test
+  public void testLookupFail_UnexpectedStatusCode() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respond(503, mapper.writeValueAsBytes(getResult())));
+
+    Assertions.assertThrows(Do4jLookupException.class, () -> {
+      Doh4j.builder()
+          .client(client)
+          .resolver("https://resolver1.com/resolve")
+          .build()
+          .lookup(name, type);
+    });
+  }
+
+  @Test
+  public void testDecodeStreamed_SkipsUnmappedFields() throws Exception {
+    String json = "{\"Status\": 0, \"TC\": false, \"Question\": [{\"name\": \"example.com.\", \"type\": 1}], " +
+        "\"Answer\": [{\"name\": \"example.com.\", \"type\": 1, \"TTL\": 0, \"data\": \"1.1.1.1\", " +
+        "\"extra\": {\"nested\": [1, 2]}}], \"Comment\": \"Response from 1.1.1.1.\", " +
+        "\"edns_client_subnet\": \"0.0.0.0/0\"}";
+
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    HttpResponse.BodySubscriber<Result> subscriber = ResultSubscriber.handler(Resolver.Format.JSON).apply(info(200));
+
+    subscriber.onSubscribe(subscription());
+
+    for (int i = 0; i < body.length; i += 7) {
+      subscriber.onNext(List.of(ByteBuffer.wrap(body, i, Math.min(7, body.length - i))));
+    }
+
+    subscriber.onComplete();
+
+    Result expected = getResult();
+
+    expected.setEdnsClientSubnet("0.0.0.0/0");
+
+    assertEquals(expected, subscriber.getBody().toCompletableFuture().get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testLookupAddresses() throws Exception {
+    Result ipv4 = new Result();
+    Result ipv6 = new Result();
+
+    ipv4.setAnswer(List.of(answer(name, Type.A, 300, "192.0.2.1"), answer(name, Type.A, 300, "192.0.2.2"),
+        answer(name, Type.A, 300, "192.0.2.3")));
+    ipv6.setAnswer(List.of(answer(name, Type.AAAA, 300, "2001:db8::1")));
+
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation -> {
+      Result result = invocation.getArgument(0, HttpRequest.class).uri().getQuery().endsWith("type=28") ? ipv6 : ipv4;
+
+      return respondAsync(mapper.writeValueAsBytes(result)).answer(invocation);
+    });
+
+    InetAddress[] addresses = Doh4j.builder()
+        .client(client)
+        .build()
+        .lookupAddresses(name);
+
+    verify(client, times(2))
+        .sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+    verify(client, never())
+        .send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    assertArrayEquals(new InetAddress[]{
+        InetAddress.getByName("2001:db8::1"),
+        InetAddress.getByName("192.0.2.1"),
+        InetAddress.getByName("192.0.2.2"),
+        InetAddress.getByName("192.0.2.3")}, addresses);
+    assertEquals("example.com", addresses[0].getHostName());
+  }
+
+  @Test
+  public void testLookupAddresses_ResolutionDelay() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    byte[] body = mapper.writeValueAsBytes(getResult());
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation ->
+        invocation.getArgument(0, HttpRequest.class).uri().getQuery().endsWith("type=28") ?
+            new CompletableFuture<>() : respondAsync(body).answer(invocation));
+
+    InetAddress[] addresses = Doh4j.builder()
+        .client(client)
+        .build()
+        .lookupAddresses(name, Duration.ofMillis(50));
+
+    assertArrayEquals(new InetAddress[]{InetAddress.getByAddress("example.com", new byte[]{1, 1, 1, 1})}, addresses);
+  }
+
+  @Test
+  public void testLookupAddresses_ResolutionDelayIpv6First() throws Exception {
+    Result ipv6 = new Result();
+
+    ipv6.setAnswer(List.of(answer(name, Type.AAAA, 300, "2001:db8::1")));
+
+    HttpClient client = mock(HttpClient.class);
+    byte[] body = mapper.writeValueAsBytes(ipv6);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation ->
+        invocation.getArgument(0, HttpRequest.class).uri().getQuery().endsWith("type=28") ?
+            respondAsync(body).answer(invocation) : new CompletableFuture<>());
+
+    InetAddress[] addresses = Doh4j.builder()
+        .client(client)
+        .build()
+        .lookupAddressesAsync(name, Duration.ofSeconds(30))
+        .get(5, TimeUnit.SECONDS);
+
+    assertArrayEquals(new InetAddress[]{InetAddress.getByName("2001:db8::1")}, addresses);
+  }
+
+  @Test
+  public void testResolve_CnameChainCached() throws Exception {
+    Answer alias = answer("www.example.com.", Type.CNAME, 3600, "cdn.example.net.");
+    Answer sibling = answer("img.example.com.", Type.CNAME, 3600, "CDN.example.net.");
+    Answer address = answer("cdn.example.net.", Type.A, 60, data);
+    Map<String, List<Answer>> responses = Map.of(
+        "www.example.com", List.of(alias, address),
+        "img.example.com", List.of(sibling),
+        "cdn.example.net", List.of(address));
+
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation -> {
+      String query = invocation.getArgument(0, HttpRequest.class).uri().getQuery();
+      String name = query.substring(query.indexOf("name=") + 5, query.indexOf('&')).replaceAll("\\.$", "");
+      Result result = new Result();
+
+      result.setAnswer(responses.get(name));
+
+      return respond(invocation.getArgument(1), mapper.writeValueAsBytes(result));
+    });
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .cache(100)
+        .build();
+
+    assertEquals(List.of(address), doh4jClient.resolve("www.example.com", Type.A).getAnswer());
+    assertEquals(List.of(address), doh4jClient.resolve("img.example.com", Type.A).getAnswer());
+    assertEquals(List.of(address), doh4jClient.resolve("WWW.example.com.", Type.A).getAnswer());
+
+    verify(client, times(2))
+        .send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class));
+
+    // Probes for aliases are not lookups of their own and leave the counters alone
+    assertEquals(2, doh4jClient.getCacheStats().getHits());
+    assertEquals(2, doh4jClient.getCacheStats().getMisses());
+  }
+
+  @Test
+  public void testResolve_CnameLoop() throws Exception {
+    Result result = new Result();
+
+    result.setAnswer(List.of(
+        answer("a.example.com.", Type.CNAME, 300, "b.example.com."),
+        answer("b.example.com.", Type.CNAME, 300, "a.example.com.")));
+
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenAnswer(respond(mapper.writeValueAsBytes(result)));
+
+    Doh4j.Doh4jClient doh4jClient = Doh4j.builder()
+        .client(client)
+        .build();
+
+    assertThrows(Do4jLookupException.class, () -> doh4jClient.resolve("a.example.com", Type.A));
+  }
+
+  @Test
+  public void testLookupAll_Publisher() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation -> {
+      String query = invocation.getArgument(0, HttpRequest.class).uri().getQuery();
+      String name = query.substring(query.indexOf("name=") + 5, query.indexOf('&'));
+
+      if (name.startsWith("fail.")) {
+        return CompletableFuture.failedFuture(new ConnectException());
+      }
+
+      Result result = new Result();
+      result.setAnswer(List.of(answer(name, Type.A, 300, name.startsWith("a.") ? "192.0.2.1" : "192.0.2.2")));
+
+      return respondAsync(mapper.writeValueAsBytes(result)).answer(invocation);
+    });
+
+    List<Query> queries = List.of(new Query("a.example.com", Type.A), new Query("fail.example.com", Type.A),
+        new Query("b.example.com", Type.A));
+    Map<Query, QueryResult> results = new ConcurrentHashMap<>();
+    CompletableFuture<Void> completed = new CompletableFuture<>();
+
+    Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .build()
+        .lookupAll(new IteratorPublisher<>(queries::iterator), 2, Ordering.COMPLETION)
+        .subscribe(new Flow.Subscriber<>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+          }
+
+          @Override
+          public void onNext(QueryResult item) {
+            results.put(item.getQuery(), item);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            completed.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            completed.complete(null);
+          }
+        });
+
+    completed.get(5, TimeUnit.SECONDS);
+
+    assertEquals(3, results.size());
+    assertEquals("192.0.2.1", results.get(queries.get(0)).getResult().getAnswer().get(0).getData());
+    assertInstanceOf(Do4jLookupException.class, results.get(queries.get(1)).getError());
+    assertNull(results.get(queries.get(1)).getResult());
+    assertEquals("192.0.2.2", results.get(queries.get(2)).getResult().getAnswer().get(0).getData());
+  }
+
+  @Test
+  public void testLookupReverse() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation -> {
+      String query = invocation.getArgument(0, HttpRequest.class).uri().getQuery();
+      String name = query.substring(query.indexOf("name=") + 5, query.indexOf('&'));
+
+      if (name.startsWith("3.")) {
+        return CompletableFuture.failedFuture(new ConnectException());
+      }
+
+      Result result = new Result();
+      result.setAnswer(List.of(answer(name, Type.PTR, 300, "host-" + name.charAt(0) + ".example.com.")));
+
+      return respondAsync(mapper.writeValueAsBytes(result)).answer(invocation);
+    });
+
+    List<ReverseResult> results = new CopyOnWriteArrayList<>();
+    CompletableFuture<Void> completed = new CompletableFuture<>();
+
+    Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver1.com/resolve")
+        .build()
+        .lookupReverse(List.of("192.0.2.0/30"), 2, Ordering.ORDERED)
+        .subscribe(new Flow.Subscriber<>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+          }
+
+          @Override
+          public void onNext(ReverseResult item) {
+            results.add(item);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            completed.completeExceptionally(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            completed.complete(null);
+          }
+        });
+
+    completed.get(5, TimeUnit.SECONDS);
+
+    assertEquals(4, results.size());
+    assertEquals(InetAddress.getByName("192.0.2.0"), results.get(0).getAddress());
+    assertEquals(List.of("host-0.example.com"), results.get(0).getHostNames());
+    assertEquals(List.of("host-2.example.com"), results.get(2).getHostNames());
+    assertInstanceOf(Do4jLookupException.class, results.get(3).getError());
+    assertTrue(results.get(3).getHostNames().isEmpty());
+  }
+
+  private Answer answer(String name, int type, int ttl, String data) {
+    Answer answer = new Answer();
+
+    answer.setName(name);
+    answer.setType(type);
+    answer.setTTL(ttl);
+    answer.setData(data);
+
+    return answer;
+  }
+
+  /**
+   * Mocks a response by running the body handler of the request against the given body, like the HTTP client does.
+   */
+  private org.mockito.stubbing.Answer<HttpResponse<?>> respond(byte[] body) {
+    return respond(200, body);
+  }
+
+  private org.mockito.stubbing.Answer<HttpResponse<?>> respond(int statusCode, byte[] body) {
+    return invocation -> respond(invocation.getArgument(1), statusCode, body);
+  }
+
+  private org.mockito.stubbing.Answer<CompletableFuture<HttpResponse<?>>> respondAsync(byte[] body) {
+    return invocation -> {
+      HttpResponse.BodyHandler<?> handler = invocation.getArgument(1);
+      return CompletableFuture.supplyAsync(() -> respond(handler, 200, body));
+    };
+  }
+
+  private <T> HttpResponse<T> respond(HttpResponse.BodyHandler<T> handler, byte[] body) {
+    return respond(handler, 200, body);
+  }
+
+  private <T> HttpResponse<T> respond(HttpResponse.BodyHandler<T> handler, int statusCode, byte[] body) {
+    HttpResponse.BodySubscriber<T> subscriber = handler.apply(info(statusCode));
+
+    subscriber.onSubscribe(subscription());
+    subscriber.onNext(List.of(ByteBuffer.wrap(body)));
+    subscriber.onComplete();
+
+    HttpResponse<T> response = (HttpResponse<T>) mock(HttpResponse.class);
+
+    when(response.statusCode()).thenReturn(statusCode);
+    when(response.body()).thenAnswer(invocation -> {
+      try {
+        return subscriber.getBody().toCompletableFuture().get(5, TimeUnit.SECONDS);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    });
+
+    return response;
+  }
+
+  private HttpResponse.ResponseInfo info(int statusCode) {
+    HttpResponse.ResponseInfo info = mock(HttpResponse.ResponseInfo.class);
+
+    when(info.statusCode()).thenReturn(statusCode);
+
+    return info;
+  }
+
+  private Flow.Subscription subscription() {
+    return new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+      }
+
+      @Override
+      public void cancel() {
+      }
+    };
+  }
+
   private Result getResult() {
     Answer answer = new Answer();
 
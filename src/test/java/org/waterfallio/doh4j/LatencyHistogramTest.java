@@ -0,0 +1,83 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+  @Test
+  public void testBucketsAreContiguous() {
+    for (long value = 0; value < 100_000; value++) {
+      int index = LatencyHistogram.index(value);
+
+      assertTrue(value <= LatencyHistogram.highestValue(index));
+      assertTrue(index == 0 || value > LatencyHistogram.highestValue(index - 1));
+    }
+
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testResolverLatencyPercentile() {
+    ResolverState state = new ResolverState(Resolver.GOOGLE, null, 0, 0);
+
+    for (int i = 1; i < ResolverState.MIN_PERCENTILE_SAMPLES; i++) {
+      state.onSend();
+      state.onSuccess(i * 1_000_000L);
+    }
+
+    assertEquals(-1, state.latencyPercentile(95, 0));
+
+    state.onSend();
+    state.onSuccess(ResolverState.MIN_PERCENTILE_SAMPLES * 1_000_000L);
+
+    long latency = state.latencyPercentile(95, 0);
+
+    assertTrue(latency >= 19_000_000 && latency <= 19_000_000 * 1.125, Long.toString(latency));
+
+    for (int i = 0; i < 100; i++) {
+      state.onSend();
+      state.onSuccess(1_000_000_000L);
+    }
+
+    assertEquals(latency, state.latencyPercentile(95, 1));
+    assertTrue(state.latencyPercentile(95, 1_000_000_000L) >= 1_000_000_000L);
+  }
+
+  @Test
+  public void testResolverLatencyPercentile_IgnoresFailures() {
+    ResolverState state = new ResolverState(Resolver.GOOGLE, null, 0, 0);
+
+    for (int i = 0; i < ResolverState.MIN_PERCENTILE_SAMPLES; i++) {
+      state.onSend();
+      state.onSuccess(100_000_000L);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      state.onSend();
+      state.onFailure(0, 1_000_000L, ErrorCause.CONNECT);
+    }
+
+    long latency = state.latencyPercentile(50, 0);
+
+    assertTrue(latency >= 100_000_000 && latency <= 100_000_000 * 1.125, Long.toString(latency));
+    assertEquals(100, state.metrics().getErrors(ErrorCause.CONNECT));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertArrayEquals(new long[]{0, 0}, histogram.percentiles(50, 99));
+
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1_000_000L);
+    }
+
+    long[] percentiles = histogram.percentiles(50, 99, 99.9);
+
+    assertEquals(500_000_000, percentiles[0], 500_000_000 * 0.125);
+    assertEquals(990_000_000, percentiles[1], 990_000_000 * 0.125);
+    assertEquals(999_000_000, percentiles[2], 999_000_000 * 0.125);
+  }
+}
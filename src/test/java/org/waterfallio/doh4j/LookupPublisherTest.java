@@ -0,0 +1,181 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.Test;
+import org.waterfallio.doh4j.exception.Do4jLookupException;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LookupPublisherTest {
+  private final Map<String, CompletableFuture<Result>> lookups = new ConcurrentHashMap<>();
+  private final Function<Query, CompletableFuture<Result>> lookup =
+      query -> lookups.computeIfAbsent(query.getName(), name -> new CompletableFuture<>());
+
+  @Test
+  public void testOrdered() {
+    Source source = new Source(List.of("a.", "b.", "c."));
+    Sink sink = new Sink();
+
+    new LookupPublisher<>(source, lookup, 3, Ordering.ORDERED).subscribe(sink);
+    sink.subscription.request(Long.MAX_VALUE);
+
+    complete("c.");
+    complete("b.");
+    assertTrue(sink.names().isEmpty());
+
+    complete("a.");
+    assertEquals(List.of("a.", "b.", "c."), sink.names());
+    assertTrue(sink.completed);
+  }
+
+  @Test
+  public void testCompletionOrder() {
+    Source source = new Source(List.of("a.", "b.", "c."));
+    Sink sink = new Sink();
+
+    new LookupPublisher<>(source, lookup, 3, Ordering.COMPLETION).subscribe(sink);
+    sink.subscription.request(Long.MAX_VALUE);
+
+    complete("c.");
+    complete("b.");
+    assertEquals(List.of("c.", "b."), sink.names());
+
+    complete("a.");
+    assertEquals(List.of("c.", "b.", "a."), sink.names());
+    assertTrue(sink.completed);
+  }
+
+  @Test
+  public void testBoundedByParallelismAndDemand() {
+    Source source = new Source(List.of("a.", "b.", "c.", "d.", "e."));
+    Sink sink = new Sink();
+
+    new LookupPublisher<>(source, lookup, 2, Ordering.COMPLETION).subscribe(sink);
+    assertEquals(2, source.requested);
+    assertEquals(2, lookups.size());
+
+    complete("a.");
+    complete("b.");
+    assertEquals(2, source.requested);
+
+    sink.subscription.request(1);
+    assertEquals(List.of("a."), sink.names());
+    assertEquals(3, source.requested);
+    assertEquals(3, lookups.size());
+
+    sink.subscription.request(10);
+    complete("c.");
+    complete("d.");
+    complete("e.");
+    assertEquals(List.of("a.", "b.", "c.", "d.", "e."), sink.names());
+    assertTrue(sink.completed);
+  }
+
+  @Test
+  public void testLookupFailure() {
+    Source source = new Source(List.of("a.", "b.", "c."));
+    Sink sink = new Sink();
+
+    new LookupPublisher<>(source, lookup, 2, Ordering.ORDERED).subscribe(sink);
+    sink.subscription.request(Long.MAX_VALUE);
+
+    lookups.get("a.").completeExceptionally(new Do4jLookupException("Failed"));
+
+    assertInstanceOf(Do4jLookupException.class, sink.error);
+    assertTrue(source.cancelled);
+    assertFalse(sink.completed);
+  }
+
+  private void complete(String name) {
+    Answer answer = new Answer();
+    answer.setName(name);
+    answer.setType(Type.A);
+    answer.setData("192.0.2.1");
+
+    Result result = new Result();
+    result.setAnswer(List.of(answer));
+
+    lookups.get(name).complete(result);
+  }
+
+  /**
+   * Publishes queries synchronously on request and records the demand of its subscriber.
+   */
+  private static class Source implements Flow.Publisher<Query> {
+    private final List<String> names;
+    private long requested;
+    private boolean cancelled;
+
+    private Source(List<String> names) {
+      this.names = names;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Query> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        private int next;
+
+        @Override
+        public void request(long n) {
+          requested += n;
+
+          while (n-- > 0 && next < names.size() && !cancelled) {
+            subscriber.onNext(new Query(names.get(next++), Type.A));
+          }
+
+          if (next == names.size() && !cancelled) {
+            next++;
+            subscriber.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+          cancelled = true;
+        }
+      });
+    }
+  }
+
+  private static class Sink implements Flow.Subscriber<Result> {
+    private final List<Result> results = new ArrayList<>();
+    private Flow.Subscription subscription;
+    private Throwable error;
+    private boolean completed;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(Result item) {
+      results.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+
+    private List<String> names() {
+      return results.stream().map(result -> result.getAnswer().get(0).getName()).collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.Test;
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCodecTest {
+  @Test
+  public void testEncodeQuery() {
+    ByteBuffer query = MessageCodec.encodeQuery("example.com.", Type.AAAA, 0);
+
+    byte[] expected = {
+        0, 0, 1, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+        7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+        0, 28, 0, 1
+    };
+
+    assertEquals(ByteBuffer.wrap(expected), query);
+  }
+
+  @Test
+  public void testEncodeQuery_InvalidName() {
+    assertThrows(Do4jSerializeException.class, () -> MessageCodec.encodeQuery("example..com", Type.A, 0));
+  }
+
+  @Test
+  public void testDecodeCompressedNames() {
+    ByteBuffer response = ByteBuffer.allocate(128)
+        .putShort((short) 0).putShort((short) 0x8180)
+        .putShort((short) 1).putShort((short) 3).putShort((short) 0).putShort((short) 0)
+        // Question: www.example.com. A IN, the name starts at offset 12 and example.com. at offset 16
+        .put(new byte[]{3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0})
+        .putShort((short) Type.A).putShort((short) 1)
+        // Answer: www.example.com. CNAME cdn.example.com., the target starts at offset 45
+        .putShort((short) 0xC00C).putShort((short) Type.CNAME).putShort((short) 1).putInt(300)
+        .putShort((short) 6).put(new byte[]{3, 'c', 'd', 'n'}).putShort((short) 0xC010)
+        // Answer: cdn.example.com. A 93.184.216.34
+        .putShort((short) 0xC02D).putShort((short) Type.A).putShort((short) 1).putInt(60)
+        .putShort((short) 4).put(new byte[]{93, (byte) 184, (byte) 216, 34})
+        // Answer: cdn.example.com. AAAA 2001:db8::1
+        .putShort((short) 0xC02D).putShort((short) Type.AAAA).putShort((short) 1).putInt(60)
+        .putShort((short) 16).putInt(0x20010db8).putInt(0).putInt(0).putInt(1)
+        .flip();
+
+    Result result = MessageCodec.decode(response);
+
+    assertEquals(0, result.getStatus());
+    assertEquals(3, result.getAnswer().size());
+
+    Answer cname = result.getAnswer().get(0);
+
+    assertEquals("www.example.com.", cname.getName());
+    assertEquals(Type.CNAME, cname.getType());
+    assertEquals(300, cname.getTTL());
+    assertEquals("cdn.example.com.", cname.getData());
+
+    assertEquals("cdn.example.com.", result.getAnswer().get(1).getName());
+    assertEquals("93.184.216.34", result.getAnswer().get(1).getData());
+    assertEquals("2001:db8::1", result.getAnswer().get(2).getData());
+  }
+
+  @Test
+  public void testDecodeStatus() {
+    ByteBuffer response = ByteBuffer.allocate(12)
+        .putShort((short) 0).putShort((short) 0x8183)
+        .putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0)
+        .flip();
+
+    Result result = MessageCodec.decode(response);
+
+    assertEquals(3, result.getStatus());
+    assertTrue(result.getAnswer().isEmpty());
+  }
+
+  @Test
+  public void testDecodePointerLoop() {
+    ByteBuffer response = ByteBuffer.allocate(32)
+        .putShort((short) 0).putShort((short) 0x8180)
+        .putShort((short) 0).putShort((short) 1).putShort((short) 0).putShort((short) 0)
+        .putShort((short) 0xC00C).putShort((short) Type.A).putShort((short) 1).putInt(60)
+        .putShort((short) 0)
+        .flip();
+
+    assertThrows(Do4jSerializeException.class, () -> MessageCodec.decode(response));
+  }
+
+  @Test
+  public void testDecodeTruncated() {
+    ByteBuffer response = ByteBuffer.wrap(new byte[]{0, 0, (byte) 0x81, (byte) 0x80, 0, 0, 0, 1});
+
+    assertThrows(Do4jSerializeException.class, () -> MessageCodec.decode(response));
+  }
+}
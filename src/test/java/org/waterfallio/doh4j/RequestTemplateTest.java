@@ -0,0 +1,85 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.Test;
+import org.waterfallio.doh4j.Resolver.Format;
+import org.waterfallio.doh4j.Resolver.Method;
+import org.waterfallio.doh4j.exception.Do4jSerializeException;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestTemplateTest {
+  @Test
+  public void testJsonRequest() {
+    HttpRequest request = new RequestTemplate(Resolver.GOOGLE).request("Example.COM.", Type.AAAA, null);
+
+    assertEquals(URI.create("https://dns.google/resolve?name=example.com.&type=28"), request.uri());
+    assertEquals("GET", request.method());
+    assertEquals("application/dns-json", request.headers().firstValue("Accept").orElseThrow());
+    assertTrue(request.timeout().isEmpty());
+  }
+
+  @Test
+  public void testJsonRequest_EncodesName() {
+    RequestTemplate template = new RequestTemplate(new Resolver("https://resolver.example/resolve?ct=json"));
+
+    assertEquals("https://resolver.example/resolve?ct=json&name=xn--mnchen-3ya.example&type=1",
+        template.request("M\u00fcnchen.example", Type.A, null).uri().toString());
+    assertEquals("https://resolver.example/resolve?ct=json&name=a%20b%26type%3D2%23.example&type=16",
+        template.request("a b&type=2#.example", Type.TXT, null).uri().toString());
+    assertEquals("https://resolver.example/resolve?ct=json&name=_sip._tcp.example&type=33",
+        template.request("_sip._tcp.example", Type.SRV, null).uri().toString());
+  }
+
+  @Test
+  public void testWireRequest() {
+    HttpRequest get = new RequestTemplate(new Resolver("https://resolver.example/dns-query", Method.GET, Format.WIRE))
+        .request("example.com", Type.A, Duration.ofSeconds(1));
+    String encoded = get.uri().getQuery().substring("dns=".length());
+
+    assertArrayEquals(MessageCodec.encodeQuery("example.com", Type.A, 0).array(),
+        Base64.getUrlDecoder().decode(encoded));
+    assertEquals(Duration.ofSeconds(1), get.timeout().orElseThrow());
+
+    HttpRequest post = new RequestTemplate(new Resolver("https://resolver.example/dns-query", Method.POST, Format.WIRE))
+        .request("example.com", Type.A, null);
+
+    assertEquals(URI.create("https://resolver.example/dns-query"), post.uri());
+    assertEquals("POST", post.method());
+    assertEquals("application/dns-message", post.headers().firstValue("Content-Type").orElseThrow());
+    assertEquals(MessageCodec.encodeQuery("example.com", Type.A, 0).remaining(),
+        post.bodyPublisher().orElseThrow().contentLength());
+  }
+
+  @Test
+  public void testClientSubnet() {
+    ClientSubnet subnet = ClientSubnet.of("198.51.100.77/24");
+
+    assertEquals("https://dns.google/resolve?name=example.com&type=1&edns_client_subnet=198.51.100.0/24",
+        new RequestTemplate(Resolver.GOOGLE).request("example.com", Type.A, subnet, null).uri().toString());
+
+    HttpRequest get = new RequestTemplate(new Resolver("https://resolver.example/dns-query", Method.GET, Format.WIRE))
+        .request("example.com", Type.A, ClientSubnet.of("2001:db8::/56"), null);
+    byte[] message = Base64.getUrlDecoder().decode(get.uri().getQuery().substring("dns=".length()));
+
+    assertEquals(MessageCodec.encodeQuery("example.com", Type.A, 0).remaining() + 11 + 8 + 7, message.length);
+    assertEquals("2001:db8:0:0:0:0:0:0/0", MessageCodec.decode(ByteBuffer.wrap(message)).getEdnsClientSubnet());
+    assertEquals(0, MessageCodec.decode(MessageCodec.encodeQuery("example.com", Type.A, 0, subnet)).getScopePrefix());
+  }
+
+  @Test
+  public void testInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> new RequestTemplate(new Resolver("https://resolver example")));
+    assertThrows(IllegalArgumentException.class, () -> new Resolver("https://resolver.example/resolve", Method.POST));
+    assertThrows(IllegalArgumentException.class,
+        () -> new Resolver("https://resolver.example/resolve", Method.PUT, Format.JSON));
+    assertThrows(Do4jSerializeException.class,
+        () -> new RequestTemplate(Resolver.GOOGLE).request("a".repeat(256), Type.A, null));
+  }
+}
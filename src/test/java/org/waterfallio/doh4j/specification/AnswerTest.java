@@ -0,0 +1,76 @@
+package org.waterfallio.doh4j.specification;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AnswerTest {
+  @Test
+  public void testAddress_A() throws Exception {
+    Answer answer = getAnswer("example.com.", Type.A, "93.184.216.34");
+
+    assertArrayEquals(new byte[]{93, (byte) 184, (byte) 216, 34}, answer.getAddressBytes());
+    assertEquals(InetAddress.getByAddress("example.com", answer.getAddressBytes()), answer.getAddress());
+    assertEquals("example.com", answer.getAddress().getHostName());
+    assertSame(answer.getAddress(), answer.getAddress());
+  }
+
+  @Test
+  public void testAddress_AAAA() throws Exception {
+    Answer answer = getAnswer("example.com.", Type.AAAA, "2001:db8::ffff:1.2.3.4");
+
+    assertEquals(InetAddress.getByName("2001:db8::ffff:102:304"), answer.getAddress());
+    assertEquals(InetAddress.getByName("::1"), getAnswer("example.com.", Type.AAAA, "::1").getAddress());
+    assertEquals(InetAddress.getByName("1::"), getAnswer("example.com.", Type.AAAA, "1::").getAddress());
+  }
+
+  @Test
+  public void testAddress_Invalid() {
+    assertNull(getAnswer("example.com.", Type.A, "1.2.3").getAddress());
+    assertNull(getAnswer("example.com.", Type.A, "1.2.3.256").getAddress());
+    assertNull(getAnswer("example.com.", Type.AAAA, "1:2:3:4:5:6:7:8:9").getAddress());
+    assertNull(getAnswer("example.com.", Type.AAAA, "1::2::3").getAddress());
+    assertNull(getAnswer("example.com.", Type.CNAME, "1.2.3.4").getAddress());
+  }
+
+  @Test
+  public void testAddressBytes() {
+    Answer answer = new Answer();
+
+    answer.setType(Type.AAAA);
+    answer.setAddressBytes(new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+
+    assertEquals("2001:db8::1", answer.getData());
+  }
+
+  @Test
+  public void testTarget() {
+    assertEquals("cdn.example.com.", getAnswer("example.com.", Type.CNAME, "cdn.example.com.").getTarget());
+
+    Answer mx = getAnswer("example.com.", Type.MX, "10 mail.example.com.");
+
+    assertEquals(10, mx.getPriority());
+    assertEquals("mail.example.com.", mx.getTarget());
+
+    Answer srv = getAnswer("_sip._tcp.example.com.", Type.SRV, "10 60 5060 sip.example.com.");
+
+    assertEquals(10, srv.getPriority());
+    assertEquals(60, srv.getWeight());
+    assertEquals(5060, srv.getPort());
+    assertEquals("sip.example.com.", srv.getTarget());
+
+    assertNull(getAnswer("example.com.", Type.A, "1.1.1.1").getTarget());
+  }
+
+  private Answer getAnswer(String name, int type, String data) {
+    Answer answer = new Answer();
+
+    answer.setName(name);
+    answer.setType(type);
+    answer.setData(data);
+
+    return answer;
+  }
+}
@@ -0,0 +1,115 @@
+package org.waterfallio.doh4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.waterfallio.doh4j.specification.Answer;
+import org.waterfallio.doh4j.specification.Result;
+import org.waterfallio.doh4j.specification.Type;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.spi.InetAddressResolver;
+import java.net.spi.InetAddressResolver.LookupPolicy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class Doh4jResolverProviderTest {
+  private final InetAddressResolver builtin = mock(InetAddressResolver.class);
+  private final LookupPolicy ipv4 = LookupPolicy.of(LookupPolicy.IPV4);
+
+  @AfterEach
+  public void clearProperties() {
+    System.clearProperty(Doh4jResolverProvider.ENABLED_PROPERTY);
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    assertSame(builtin, Doh4jResolverProvider.resolver(builtin));
+
+    System.setProperty(Doh4jResolverProvider.ENABLED_PROPERTY, "false");
+
+    assertSame(builtin, Doh4jResolverProvider.resolver(builtin));
+  }
+
+  @Test
+  public void testEnabled() {
+    System.setProperty(Doh4jResolverProvider.ENABLED_PROPERTY, "true");
+
+    assertInstanceOf(Doh4jResolverProvider.Doh4jResolver.class, Doh4jResolverProvider.resolver(builtin));
+  }
+
+  @Test
+  public void testLookupByName() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    HttpResponse<Result> response = response(getResult("192.0.2.1"));
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+
+    InetAddressResolver resolver = new Doh4jResolverProvider.Doh4jResolver(builtin, client(client));
+
+    assertEquals(List.of(InetAddress.getByAddress("example.com", new byte[]{(byte) 192, 0, 2, 1})),
+        resolver.lookupByName("example.com", ipv4).collect(Collectors.toList()));
+    verifyNoInteractions(builtin);
+  }
+
+  @Test
+  public void testLookupByName_FallsBackToBuiltin() throws Exception {
+    HttpClient client = mock(HttpClient.class);
+    InetAddress local = InetAddress.getByAddress("localhost", new byte[]{127, 0, 0, 1});
+
+    when(client.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class)))
+        .thenReturn(CompletableFuture.failedFuture(new ConnectException()));
+    when(builtin.lookupByName(any(), any())).thenAnswer(invocation -> Stream.of(local));
+
+    InetAddressResolver resolver = new Doh4jResolverProvider.Doh4jResolver(builtin, client(client));
+
+    assertEquals(List.of(local), resolver.lookupByName("localhost", ipv4).collect(Collectors.toList()));
+    verifyNoInteractions(client);
+
+    assertEquals(List.of(local), resolver.lookupByName("example.com", ipv4).collect(Collectors.toList()));
+    verify(builtin).lookupByName("example.com", ipv4);
+  }
+
+  private static Doh4j.Doh4jClient client(HttpClient client) {
+    return Doh4j.builder()
+        .client(client)
+        .resolver("https://resolver.example/resolve")
+        .build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static HttpResponse<Result> response(Result result) {
+    HttpResponse<Result> response = (HttpResponse<Result>) mock(HttpResponse.class);
+
+    when(response.statusCode()).thenReturn(200);
+    when(response.body()).thenReturn(result);
+
+    return response;
+  }
+
+  private static Result getResult(String address) {
+    Answer answer = new Answer();
+
+    answer.setName("example.com.");
+    answer.setType(Type.A);
+    answer.setTTL(0);
+    answer.setData(address);
+
+    Result result = new Result();
+
+    result.setStatus(0);
+    result.setAnswer(List.of(answer));
+
+    return result;
+  }
+}